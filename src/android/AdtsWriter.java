@@ -0,0 +1,222 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Encodes 16 bit PCM to AAC-LC with the platform encoder and streams the frames into a raw ADTS
+ * file. Every frame carries its own 7 byte header, so there is nothing to patch when the
+ * recording ends and a truncated file still plays.
+ */
+public class AdtsWriter implements PcmSink {
+
+    private static final String MIME_AAC = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final long TIMEOUT_US = 10000;
+    // How long close() waits for the encoder to take and flush the end of the stream
+    private static final long END_OF_STREAM_TIMEOUT_MS = 5000;
+    private static final int HEADER_SIZE = 7;
+
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private final MediaCodec codec;
+    private final FileChannel channel;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final int sampleRate;
+    private final int channels;
+    private long samplesQueued;
+
+    /**
+     * @return  true if the device has an AAC encoder for the format
+     */
+    public static boolean isSupported(int sampleRate, int channels) {
+        if (sampleRateIndex(sampleRate) < 0) {
+            return false;
+        }
+        MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        return codecs.findEncoderForFormat(createFormat(sampleRate, channels, 0)) != null;
+    }
+
+    /**
+     * @param file          The file to create
+     * @param sampleRate    Frames per second, one of the rates ADTS can signal
+     * @param channels      1 for mono, 2 for stereo
+     * @param bitRate       Target bit rate in bits per second
+     */
+    public AdtsWriter(File file, int sampleRate, int channels, int bitRate) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.codec = MediaCodec.createEncoderByType(MIME_AAC);
+        try {
+            codec.configure(createFormat(sampleRate, channels, bitRate), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+            this.channel = new FileOutputStream(file).getChannel();
+        } catch (IOException | RuntimeException e) {
+            codec.release();
+            throw e;
+        }
+    }
+
+    private static MediaFormat createFormat(int sampleRate, int channels, int bitRate) {
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_AAC, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        if (bitRate > 0) {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        }
+        return format;
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int length) throws IOException {
+        while (length > 0) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index >= 0) {
+                ByteBuffer input = codec.getInputBuffer(index);
+                input.clear();
+                int n = Math.min(length, input.remaining() / 2);
+                input.order(ByteOrder.nativeOrder()).asShortBuffer().put(pcm, offset, n);
+                codec.queueInputBuffer(index, 0, n * 2, presentationTimeUs(), 0);
+                samplesQueued += n;
+                offset += n;
+                length -= n;
+            }
+            drain(0);
+        }
+    }
+
+    /**
+     * Flushes the encoder and closes the file.
+     *
+     * @throws IOException  if the encoder does not finish the stream within
+     *                      END_OF_STREAM_TIMEOUT_MS, so a stuck codec cannot hang the recording
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            long deadline = System.nanoTime() + END_OF_STREAM_TIMEOUT_MS * 1000000L;
+            int index;
+            while ((index = codec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                checkDeadline(deadline);
+                drain(0);
+            }
+            codec.queueInputBuffer(index, 0, 0, presentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(deadline);
+            codec.stop();
+        } finally {
+            codec.release();
+            channel.close();
+        }
+    }
+
+    private long presentationTimeUs() {
+        return samplesQueued / channels * 1000000L / sampleRate;
+    }
+
+    /**
+     * Writes every encoded frame the codec has ready. At the end of the stream this waits until
+     * the codec reports its last frame.
+     *
+     * @param deadline  The System.nanoTime() by which the codec must report its last frame, or 0
+     *                  to return as soon as no frame is ready
+     */
+    private void drain(long deadline) throws IOException {
+        boolean endOfStream = deadline != 0;
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                checkDeadline(deadline);
+                continue;
+            }
+            if (index < 0) {
+                // Format and buffer changes carry nothing to write
+                continue;
+            }
+
+            ByteBuffer output = codec.getOutputBuffer(index);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                output.position(info.offset);
+                output.limit(info.offset + info.size);
+                header.clear();
+                putHeader(header, sampleRate, channels, info.size);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (output.hasRemaining()) {
+                    channel.write(output);
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private static void checkDeadline(long deadline) throws IOException {
+        if (System.nanoTime() - deadline > 0) {
+            throw new IOException("AAC encoder did not finish the stream within " + END_OF_STREAM_TIMEOUT_MS + " ms");
+        }
+    }
+
+    /**
+     * Writes the ADTS header of an AAC-LC frame without CRC.
+     *
+     * @param out           Receives the 7 header bytes
+     * @param sampleRate    One of the rates ADTS can signal
+     * @param channels      Channel configuration, 1 to 7
+     * @param payloadLength Length of the raw AAC frame that follows the header
+     */
+    static void putHeader(ByteBuffer out, int sampleRate, int channels, int payloadLength) {
+        int profile = MediaCodecInfo.CodecProfileLevel.AACObjectLC - 1;
+        int rateIndex = sampleRateIndex(sampleRate);
+        int frameLength = payloadLength + HEADER_SIZE;
+        out.put((byte) 0xFF);
+        out.put((byte) 0xF1);                           // MPEG-4, layer 0, no CRC
+        out.put((byte) ((profile << 6) | (rateIndex << 2) | (channels >> 2)));
+        out.put((byte) (((channels & 3) << 6) | (frameLength >> 11)));
+        out.put((byte) ((frameLength >> 3) & 0xFF));
+        out.put((byte) (((frameLength & 7) << 5) | 0x1F));
+        out.put((byte) 0xFC);                           // buffer fullness 0x7FF, one raw block
+    }
+
+    static int sampleRateIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records microphone audio inside the app instead of through a recorder activity. A high priority
+ * thread reads AudioRecord into a PcmRingBuffer and a second thread drains the buffer into a
+ * PcmSink, so slow file or encoder writes never stall the microphone.
+ */
+public class AudioRecorder {
+
+    /**
+     * Called on the writer thread once the recording has ended.
+     */
+    public interface Listener {
+        void onFinished(long frames, long droppedSamples);
+
+        void onError(Exception e);
+    }
+
+    // Audio buffered between the threads, enough to ride out a stalled encoder
+    private static final int RING_SECONDS = 2;
+    private static final long IDLE_WAIT_NANOS = 5000000L;
+
+    private final AudioRecord record;
+    private final PcmSink sink;
+    private final PcmRingBuffer ring;
+    private final int channels;
+    private final long maxFrames;
+    private final Listener listener;
+    private final int readSize;
+    private volatile boolean stopping;
+
+    /**
+     * @param sink          Receives the recorded PCM; closed when recording ends
+     * @param sampleRate    Frames per second
+     * @param channels      1 for mono, 2 for stereo
+     * @param maxFrames     Recording stops by itself after this many frames
+     * @param listener      Notified when the sink has been closed
+     * @throws IOException if the microphone cannot be opened with this format
+     */
+    public AudioRecorder(PcmSink sink, int sampleRate, int channels, long maxFrames, Listener listener) throws IOException {
+        int channelMask = channels == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int minBuffer = AudioRecord.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBuffer <= 0) {
+            throw new IOException("Unsupported recording format: " + sampleRate + " Hz, " + channels + " channels");
+        }
+
+        // Keep each read small so audio reaches the ring soon after it is captured
+        this.readSize = Math.max(minBuffer / 2 / 2 / channels * channels, channels);
+        this.record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT, minBuffer * 2);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            throw new IOException("Unable to open the microphone");
+        }
+
+        this.sink = sink;
+        this.ring = new PcmRingBuffer(sampleRate * channels * RING_SECONDS);
+        this.channels = channels;
+        this.maxFrames = maxFrames;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts recording. Audio is captured from the moment this returns.
+     */
+    public void start() throws IOException {
+        try {
+            record.startRecording();
+        } catch (IllegalStateException e) {
+            record.release();
+            throw new IOException("Unable to start recording", e);
+        }
+        if (record.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            record.release();
+            throw new IOException("The microphone is in use");
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capture();
+            }
+        }, "AudioRecorder-capture").start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AudioRecorder-writer").start();
+    }
+
+    /**
+     * Ends the recording. The listener is called once the remaining audio has been written.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    private void capture() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        short[] buffer = new short[readSize];
+        long frames = 0;
+        try {
+            while (!stopping && frames < maxFrames) {
+                int wanted = (int) Math.min(buffer.length, (maxFrames - frames) * channels);
+                int n = record.read(buffer, 0, wanted);
+                if (n < 0) {
+                    break;
+                }
+                ring.write(buffer, 0, n);
+                frames += n / channels;
+            }
+        } finally {
+            record.stop();
+            record.release();
+            ring.close();
+        }
+    }
+
+    private void drain() {
+        short[] buffer = new short[readSize];
+        long samples = 0;
+        try {
+            try {
+                while (!ring.isDrained()) {
+                    int n = ring.read(buffer, 0, buffer.length);
+                    if (n == 0) {
+                        LockSupport.parkNanos(IDLE_WAIT_NANOS);
+                        continue;
+                    }
+                    sink.write(buffer, 0, n);
+                    samples += n;
+                }
+            } finally {
+                sink.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            stopping = true;
+            listener.onError(e);
+            return;
+        }
+        listener.onFinished(samples / channels, ring.getDropped());
+    }
+}
@@ -0,0 +1,286 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A peak summary of an audio file for drawing its waveform: the minimum, maximum and RMS level of
+ * a fixed number of equal time slices, over all channels. WAV files are read through
+ * memory-mapped windows; other formats are decoded with the platform decoder. Either way the
+ * samples are streamed through one reused buffer into three primitive arrays, so memory use does
+ * not depend on the length of the file.
+ */
+public class AudioWaveform {
+
+    public static final int MAX_BUCKETS = 8192;
+
+    private static final long MAP_WINDOW = 16L * 1024 * 1024;
+    private static final int COPY_SAMPLES = 32 * 1024;
+    private static final long TIMEOUT_US = 10000;
+
+    public final int buckets;
+    public final int sampleRate;
+    public final int channels;
+    public final short[] min;
+    public final short[] max;
+    public final short[] rms;
+
+    // Frames actually read, which for decoded files can differ slightly from the container duration
+    private long frames;
+
+    // Running sums of the bucket being filled
+    private final long totalFrames;
+    private int bucket;
+    private long bucketEnd;
+    private long frame;
+    private int bucketMin;
+    private int bucketMax;
+    private long bucketSquares;
+    private long bucketSamples;
+
+    private AudioWaveform(int buckets, long totalFrames, int sampleRate, int channels) {
+        this.buckets = buckets;
+        this.totalFrames = Math.max(1, totalFrames);
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.min = new short[buckets];
+        this.max = new short[buckets];
+        this.rms = new short[buckets];
+        this.bucketEnd = boundary(0);
+        resetBucket();
+    }
+
+    /**
+     * Summarizes an audio file.
+     *
+     * @param file      A 16 bit PCM WAV file, or any audio file the platform can decode
+     * @param buckets   The number of time slices, 1 to MAX_BUCKETS
+     */
+    public static AudioWaveform create(File file, int buckets) throws IOException {
+        if (buckets < 1 || buckets > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Invalid bucket count: " + buckets);
+        }
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            WavFile wav;
+            try {
+                wav = WavFile.read(channel);
+            } catch (IOException e) {
+                wav = null;
+            }
+            if (wav != null) {
+                return fromWav(channel, wav, buckets);
+            }
+        }
+        return decode(file, buckets);
+    }
+
+    /**
+     * @return  Duration of the summarized audio in seconds
+     */
+    public double getDuration() {
+        return sampleRate > 0 ? (double) frames / sampleRate : 0;
+    }
+
+    private static AudioWaveform fromWav(FileChannel channel, WavFile wav, int buckets) throws IOException {
+        AudioWaveform waveform = new AudioWaveform(buckets, wav.getFrameCount(), wav.sampleRate, wav.channels);
+        // Whole frames only, a trailing partial frame is ignored
+        long length = wav.getFrameCount() * wav.channels * 2;
+        short[] buffer = new short[COPY_SAMPLES - COPY_SAMPLES % wav.channels];
+        for (long offset = 0; offset < length; offset += MAP_WINDOW) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, wav.dataOffset + offset, Math.min(MAP_WINDOW, length - offset));
+            ShortBuffer samples = map.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            while (samples.hasRemaining()) {
+                int count = Math.min(buffer.length, samples.remaining());
+                samples.get(buffer, 0, count);
+                waveform.add(buffer, count);
+            }
+        }
+        waveform.finish();
+        return waveform;
+    }
+
+    private static AudioWaveform decode(File file, int buckets) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                MediaFormat candidate = extractor.getTrackFormat(i);
+                String mime = candidate.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = candidate;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No audio track in " + file);
+            }
+            if (!format.containsKey(MediaFormat.KEY_DURATION)) {
+                throw new IOException("Unknown duration of " + file);
+            }
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            long frames = format.getLong(MediaFormat.KEY_DURATION) * sampleRate / 1000000;
+            AudioWaveform waveform = new AudioWaveform(buckets, frames, sampleRate, channels);
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            short[] buffer = new short[COPY_SAMPLES];
+            int decodedChannels = channels;
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    decodedChannels = codec.getOutputFormat().getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (index >= 0) {
+                    ByteBuffer output = codec.getOutputBuffer(index);
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    ShortBuffer samples = output.order(ByteOrder.nativeOrder()).asShortBuffer();
+                    // Decoders emit whole frames, so each copy ends on a frame boundary
+                    int chunk = buffer.length - buffer.length % decodedChannels;
+                    while (samples.hasRemaining()) {
+                        int count = Math.min(chunk, samples.remaining());
+                        samples.get(buffer, 0, count);
+                        waveform.add(buffer, count, decodedChannels);
+                    }
+                    codec.releaseOutputBuffer(index, false);
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+            waveform.finish();
+            return waveform;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Unable to decode " + file, e);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // never started
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    private void add(short[] samples, int count) {
+        add(samples, count, channels);
+    }
+
+    /**
+     * Adds interleaved samples of whole frames.
+     */
+    void add(short[] samples, int count, int frameChannels) {
+        int i = 0;
+        while (i < count) {
+            // Samples up to the end of the current bucket, or all of them in the last bucket
+            int end = bucket == buckets - 1 ? count : (int) Math.min(count, i + (bucketEnd - frame) * frameChannels);
+            int lo = bucketMin;
+            int hi = bucketMax;
+            long squares = bucketSquares;
+            for (int k = i; k < end; k++) {
+                int s = samples[k];
+                if (s < lo) {
+                    lo = s;
+                }
+                if (s > hi) {
+                    hi = s;
+                }
+                squares += s * s;
+            }
+            bucketMin = lo;
+            bucketMax = hi;
+            bucketSquares = squares;
+            bucketSamples += end - i;
+            frame += (end - i) / frameChannels;
+            i = end;
+            if (frame >= bucketEnd && bucket < buckets - 1) {
+                closeBucket();
+            }
+        }
+        frames = frame;
+    }
+
+    private void finish() {
+        // Buckets past the end of a file shorter than its declared duration stay silent
+        if (bucketSamples > 0) {
+            closeBucket();
+        }
+    }
+
+    private void closeBucket() {
+        if (bucketSamples > 0) {
+            min[bucket] = (short) bucketMin;
+            max[bucket] = (short) bucketMax;
+            rms[bucket] = (short) Math.min(Short.MAX_VALUE, Math.round(Math.sqrt((double) bucketSquares / bucketSamples)));
+        }
+        if (bucket < buckets - 1) {
+            bucket++;
+            bucketEnd = boundary(bucket);
+        }
+        resetBucket();
+    }
+
+    private void resetBucket() {
+        bucketMin = Short.MAX_VALUE;
+        bucketMax = Short.MIN_VALUE;
+        bucketSquares = 0;
+        bucketSamples = 0;
+    }
+
+    /**
+     * @return  The frame at which the given bucket ends
+     */
+    private long boundary(int index) {
+        return (index + 1) * totalFrames / buckets;
+    }
+}
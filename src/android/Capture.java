@@ -20,15 +20,28 @@ package org.apache.cordova.mediacapture;
 
 import static java.lang.Boolean.valueOf;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
 
 import android.content.ActivityNotFoundException;
 import android.graphics.Bitmap;
@@ -36,6 +49,7 @@ import android.graphics.Matrix;
 import android.media.ExifInterface;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 
 import org.apache.cordova.file.FileUtils;
 import org.apache.cordova.file.LocalFilesystemURL;
@@ -45,6 +59,7 @@ import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.LOG;
 import org.apache.cordova.PermissionHelper;
 import org.apache.cordova.PluginManager;
+import org.apache.cordova.PluginResult;
 import org.apache.cordova.mediacapture.PendingRequests.Request;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -54,19 +69,21 @@ import android.Manifest;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
 import android.graphics.BitmapFactory;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Environment;
 import android.provider.MediaStore;
+import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
 
 import androidx.annotation.RequiresApi;
+import androidx.core.content.FileProvider;
 
 
 public class Capture extends CordovaPlugin {
@@ -74,71 +91,162 @@ public class Capture extends CordovaPlugin {
     private static final String VIDEO_3GPP = "video/3gpp";
     private static final String VIDEO_MP4 = "video/mp4";
     private static final String AUDIO_3GPP = "audio/3gpp";
-    private static final String[] AUDIO_TYPES = new String[]{"audio/3gpp", "audio/aac", "audio/amr", "audio/wav"};
+    private static final String[] AUDIO_TYPES = new String[]{"audio/3gpp", "audio/aac", "audio/amr", "audio/wav", "audio/x-wav", "audio/flac"};
+    private static final String RECORDER_NATIVE = "native";
+    private static final String FORMAT_AAC = "aac";
+    private static final String FORMAT_FLAC = "flac";
+    private static final int AAC_BIT_RATE_PER_CHANNEL = 64000;
     private static final String IMAGE_JPEG = "image/jpeg";
 
+    private static final String STORAGE_PRIVATE = "private";
+    private static final String PROVIDER_AUTHORITY_SUFFIX = ".cordova.plugin.mediacapture.provider";
+    private static final String PRIVATE_DIRECTORY_PREFERENCE = "AndroidMediaCapturePrivateDirectory";
+    private static final String CACHE_QUOTA_PREFERENCE = "AndroidMediaCaptureCacheQuotaMB";
+    private static final int DEFAULT_CACHE_QUOTA_MB = 64;
+    // Also named in capture_provider_paths.xml, which shares only this directory with camera apps
+    private static final String STORE_DIRECTORY = "mediacapture";
+    // Suffixes of the cache files kept in the capture store for data derived from a file
+    private static final String MANIFEST_CACHE = ".manifest.json";
+    private static final String WAVEFORM_CACHE = ".waveform.json";
+    private static final String JOURNAL_FILE = "mediacapture-journal";
+    private static final String CATALOG_FILE = "mediacapture-catalog";
+
     private static final int CAPTURE_AUDIO = 0;     // Constant for capture audio
     private static final int CAPTURE_IMAGE_OR_VIDEO = 1;     // Constant for capture image
     private static final String LOG_TAG = "Capture";
 
     private static final int CAPTURE_INTERNAL_ERR = 0;
-    //    private static final int CAPTURE_APPLICATION_BUSY = 1;
-//    private static final int CAPTURE_INVALID_ARGUMENT = 2;
+    private static final int CAPTURE_APPLICATION_BUSY = 1;
+    private static final int CAPTURE_INVALID_ARGUMENT = 2;
     private static final int CAPTURE_NO_MEDIA_FILES = 3;
     private static final int CAPTURE_PERMISSION_DENIED = 4;
     private static final int CAPTURE_NOT_SUPPORTED = 20;
 
     private boolean multipleImageReq = false;
     private boolean multipleVideoReq = false;
-    private static final String[] storagePermissions = new String[]{
-            Manifest.permission.READ_EXTERNAL_STORAGE,
-            Manifest.permission.WRITE_EXTERNAL_STORAGE
-    };
-
-    private boolean cameraPermissionInManifest;     // Whether or not the CAMERA permission is declared in AndroidManifest.xml
+    private CaptureCapabilities capabilities;       // Probed on first use, see getCapabilities()
 
     private final PendingRequests pendingRequests = new PendingRequests();
+    private CaptureStore captureStore;
+    private ContentStore contentStore;
+    private MediaCatalog catalog;                       // Every capture returned, for listCapturedMedia
+    private final PerceptualHash.Index perceptualIndex = new PerceptualHash.Index();
+    private final MediaChunkReader chunkReader = new MediaChunkReader();
+    private AudioRecorder audioRecorder;                // The in-process recording in progress, if any
 
     private int numPics;                            // Number of pictures before capture activity
     private Uri imageUri;
     private Uri videoUri;
+    private File imageFile;                         // Camera output for private storage requests
+    private File videoFile;
+
+    // Keys of the capture state entries naming files a camera or recorder writes
+    private static final String[] CAPTURE_STATE_FILES = {"imageFile", "videoFile", "imageUri", "videoUri", "audioFile"};
 
 
     @Override
     protected void pluginInitialize() {
         super.pluginInitialize();
 
-        // CB-10670: The CAMERA permission does not need to be requested unless it is declared
-        // in AndroidManifest.xml. This plugin does not declare it, but others may and so we must
-        // check the package info to determine if the permission is present.
-
-        cameraPermissionInManifest = false;
-        try {
-            PackageManager packageManager = this.cordova.getActivity().getPackageManager();
-            String[] permissionsInPackage = packageManager.getPackageInfo(this.cordova.getActivity().getPackageName(), PackageManager.GET_PERMISSIONS).requestedPermissions;
-            if (permissionsInPackage != null) {
-                for (String permission : permissionsInPackage) {
-                    if (permission.equals(Manifest.permission.CAMERA)) {
-                        cameraPermissionInManifest = true;
-                        break;
+        // Capability probing is deferred to getCapabilities() to keep it off the startup path
+
+        // Kept in the files directory, which the system never purges
+        pendingRequests.openJournal(new File(cordova.getActivity().getFilesDir(), JOURNAL_FILE));
+
+        // Read on first use, so creating it costs nothing at startup
+        catalog = new MediaCatalog(new File(cordova.getActivity().getFilesDir(), CATALOG_FILE),
+                cordova.getThreadPool(), new MediaCatalog.Prober() {
+                    @Override
+                    public JSONObject probe(String fullPath, String type) {
+                        try {
+                            return getFormatData(fullPath, type);
+                        } catch (JSONException e) {
+                            return null;
+                        }
                     }
-                }
-            }
-        } catch (NameNotFoundException e) {
-            // We are requesting the info for our package, so this should
-            // never be caught
-            LOG.e(LOG_TAG, "Failed checking for CAMERA permission in manifest", e);
-        }
+                });
+        pendingRequests.setCatalog(catalog);
     }
 
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
         if (action.equals("getFormatData")) {
+            JSONObject formatOptions = args.optJSONObject(2);
+            int buckets = formatOptions == null ? 0 : formatOptions.optInt("waveform", 0);
+            if (buckets != 0) {
+                getFormatData(args.getString(0), args.getString(1), buckets, callbackContext);
+                return true;
+            }
             JSONObject obj = getFormatData(args.getString(0), args.getString(1));
             callbackContext.success(obj);
             return true;
         }
 
+        if (action.equals("getCapabilities")) {
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        callbackContext.success(getCapabilities().toJSON());
+                    } catch (JSONException e) {
+                        callbackContext.error(createErrorObject(CAPTURE_INTERNAL_ERR, "Error reading capabilities."));
+                    }
+                }
+            });
+            return true;
+        }
+
+        if (action.equals("releaseMedia")) {
+            releaseMedia(args.getString(0), callbackContext);
+            return true;
+        }
+
+        if (action.equals("stopAudioCapture")) {
+            stopAudioCapture();
+            callbackContext.success();
+            return true;
+        }
+
+        if (action.equals("processAudio")) {
+            JSONObject processOptions = args.optJSONObject(1);
+            if (processOptions == null) {
+                processOptions = new JSONObject();
+            }
+            WavProcessor.Options wavOptions = createWavOptions(
+                    processOptions.optBoolean("trimSilence", true),
+                    processOptions.optDouble("silenceThreshold", -50),
+                    processOptions.optInt("silenceHangover", 250),
+                    processOptions.optDouble("normalize", Double.NaN));
+            boolean flac = FORMAT_FLAC.equals(processOptions.optString("format", "wav"));
+            processAudio(args.getString(0), wavOptions, flac, callbackContext);
+            return true;
+        }
+
+        if (action.equals("readMediaChunk")) {
+            readMediaChunk(args.getString(0), args.getLong(1), args.getInt(2), callbackContext);
+            return true;
+        }
+
+        if (action.equals("segmentMedia")) {
+            segmentMedia(args.getString(0), args.optJSONObject(1), callbackContext);
+            return true;
+        }
+
+        if (action.equals("recoverCaptures")) {
+            recoverCaptures(callbackContext);
+            return true;
+        }
+
+        if (action.equals("listCapturedMedia")) {
+            listCapturedMedia(args.optJSONObject(0), callbackContext);
+            return true;
+        }
+
+        if (action.equals("trimVideo")) {
+            trimVideo(args.getString(0), args.getDouble(1), args.getDouble(2), callbackContext);
+            return true;
+        }
+
         JSONObject options = args.optJSONObject(0);
         multipleImageReq = Boolean.parseBoolean(options.getString("image"));
         multipleVideoReq = Boolean.parseBoolean(options.getString("video"));
@@ -155,6 +263,465 @@ public class Capture extends CordovaPlugin {
         return true;
     }
 
+    /**
+     * Releases a private capture. Files shared by deduplicated captures are only deleted once
+     * every capture referencing them has been released.
+     *
+     * @param filePath path or URL of a file returned by a private storage capture
+     */
+    private void releaseMedia(final String filePath, final CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = resolveMediaFile(filePath);
+                if (file == null || !getCaptureStore().contains(file)) {
+                    callbackContext.error(createErrorObject(CAPTURE_INVALID_ARGUMENT, "Not a private capture: " + filePath));
+                    return;
+                }
+                boolean deleted = getContentStore().release(file);
+                if (deleted) {
+                    catalog.remove(Uri.fromFile(file).toString());
+                    removeCacheFiles(file);
+                }
+                callbackContext.success(deleted ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * Trims silence from and normalizes a WAV file, optionally encoding the result to FLAC. The
+     * result is written to private storage so it can be released with releaseMedia; the original
+     * file is not modified. The result is a new file even when no processing applies.
+     *
+     * @param filePath path or URL of a 16 bit PCM WAV file
+     * @param options  the processing to apply, or null for none
+     * @param flac     whether to return the audio losslessly compressed to FLAC
+     */
+    private void processAudio(final String filePath, final WavProcessor.Options options, final boolean flac, final CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = resolveMediaFile(filePath);
+                if (file == null) {
+                    callbackContext.error(createErrorObject(CAPTURE_INVALID_ARGUMENT, "Invalid audio file " + filePath));
+                    return;
+                }
+                getCaptureStore().touch(file);
+
+                File processed = null;
+                File encoded = null;
+                try {
+                    processed = createPrivateFile(".wav");
+                    boolean changed = options != null && WavProcessor.process(file, processed, options) != null;
+                    if (flac) {
+                        encoded = createPrivateFile(".flac");
+                        FlacEncoder.encode(changed ? processed : file, encoded);
+                        getCaptureStore().remove(processed);
+                        processed = null;
+                        getCaptureStore().commit(encoded);
+                        file = encoded;
+                    } else {
+                        if (!changed) {
+                            // Nothing to trim or normalize, but the caller still gets a copy of
+                            // its own to release, never the original
+                            copyFile(file, processed);
+                        }
+                        getCaptureStore().commit(processed);
+                        file = processed;
+                    }
+                } catch (IOException e) {
+                    LOG.e(LOG_TAG, "Error processing audio " + file, e);
+                    if (processed != null) {
+                        getCaptureStore().remove(processed);
+                    }
+                    if (encoded != null) {
+                        getCaptureStore().remove(encoded);
+                    }
+                    callbackContext.error(createErrorObject(CAPTURE_INTERNAL_ERR, "Error processing audio."));
+                    return;
+                }
+                callbackContext.success(createMediaFile(Uri.fromFile(file), null));
+            }
+        });
+    }
+
+    /**
+     * Returns a byte range of a file as an ArrayBuffer. Encrypted private captures are decrypted,
+     * so offsets and lengths always refer to the plaintext.
+     *
+     * @param filePath path or URL of the file to read
+     * @param offset   position of the first byte
+     * @param length   number of bytes wanted, capped at MediaChunkReader.MAX_READ
+     */
+    private void readMediaChunk(final String filePath, final long offset, final int length, final CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = resolveMediaFile(filePath);
+                if (file == null || offset < 0 || length < 0) {
+                    callbackContext.error(createErrorObject(CAPTURE_INVALID_ARGUMENT, "Invalid read of " + filePath));
+                    return;
+                }
+                getCaptureStore().touch(file);
+                try {
+                    byte[] bytes = chunkReader.read(file, offset, length);
+                    callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, bytes));
+                } catch (IOException e) {
+                    LOG.e(LOG_TAG, "Error reading " + file, e);
+                    callbackContext.error(createErrorObject(CAPTURE_INTERNAL_ERR, "Error reading file."));
+                }
+            }
+        });
+    }
+
+    /**
+     * Describes a file as fixed-size byte ranges with per-chunk digests so it can be uploaded in
+     * resumable pieces straight from disk. Manifests are cached by path, size and modification
+     * time, so resuming an upload does not read the file again.
+     *
+     * @param filePath path or URL of the file to segment
+     * @param options  chunkSize in bytes and digest names, both optional
+     */
+    private void segmentMedia(final String filePath, final JSONObject options, final CallbackContext callbackContext) throws JSONException {
+        final long chunkSize = options == null ? MediaSegmenter.DEFAULT_CHUNK_SIZE : options.optLong("chunkSize", MediaSegmenter.DEFAULT_CHUNK_SIZE);
+        String[] requested = MediaDigest.parseNames(options == null ? null : options.opt("digest"));
+        final String[] algorithms = requested.length > 0 ? requested : new String[]{MediaDigest.SHA256};
+
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = resolveMediaFile(filePath);
+                if (file == null || chunkSize < MediaSegmenter.MIN_CHUNK_SIZE) {
+                    callbackContext.error(createErrorObject(CAPTURE_INVALID_ARGUMENT, "Invalid segmentation of " + filePath));
+                    return;
+                }
+                getCaptureStore().touch(file);
+
+                File cached = getCacheFile(MANIFEST_CACHE, file);
+                try {
+                    JSONObject manifest = readCachedObject(cached);
+                    if (!isCurrentManifest(manifest, file, chunkSize, algorithms)) {
+                        manifest = createManifest(file, chunkSize, algorithms);
+                        writeCachedObject(cached, manifest);
+                    }
+                    callbackContext.success(manifest);
+                } catch (IOException | JSONException e) {
+                    LOG.e(LOG_TAG, "Error segmenting " + file, e);
+                    callbackContext.error(createErrorObject(CAPTURE_INTERNAL_ERR, "Error segmenting file."));
+                }
+            }
+        });
+    }
+
+    private JSONObject createManifest(File file, long chunkSize, String[] algorithms) throws IOException, JSONException {
+        MediaDigest[] fileDigests = MediaDigest.create(algorithms);
+        List<MediaSegmenter.Segment> segments = MediaSegmenter.segment(file, chunkSize, algorithms, fileDigests);
+
+        JSONArray chunks = new JSONArray();
+        for (MediaSegmenter.Segment segment : segments) {
+            JSONObject digest = new JSONObject();
+            for (int i = 0; i < segment.names.length; i++) {
+                digest.put(segment.names[i], segment.digests[i]);
+            }
+            JSONObject chunk = new JSONObject();
+            chunk.put("index", segment.index);
+            chunk.put("offset", segment.offset);
+            chunk.put("length", segment.length);
+            chunk.put("digest", digest);
+            chunks.put(chunk);
+        }
+
+        JSONObject digest = new JSONObject();
+        for (MediaDigest d : fileDigests) {
+            digest.put(d.getName(), d.toHex());
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("fullPath", Uri.fromFile(file));
+        manifest.put("size", file.length());
+        manifest.put("lastModifiedDate", file.lastModified());
+        manifest.put("chunkSize", chunkSize);
+        manifest.put("algorithms", new JSONArray(Arrays.asList(algorithms)));
+        manifest.put("digest", digest);
+        manifest.put("chunks", chunks);
+        return manifest;
+    }
+
+    /**
+     * @return true if a cached manifest still describes the file with the requested chunking
+     */
+    private boolean isCurrentManifest(JSONObject manifest, File file, long chunkSize, String[] algorithms) {
+        return manifest != null
+                && manifest.optLong("size") == file.length()
+                && manifest.optLong("lastModifiedDate") == file.lastModified()
+                && manifest.optLong("chunkSize") == chunkSize
+                && new JSONArray(Arrays.asList(algorithms)).toString().equals(String.valueOf(manifest.optJSONArray("algorithms")));
+    }
+
+    /**
+     * Returns the cache file holding data derived from the given file, named by a hash of its
+     * path. Cache files live in the capture store, so its quota bounds them.
+     *
+     * @param suffix MANIFEST_CACHE or WAVEFORM_CACHE
+     */
+    private File getCacheFile(String suffix, File file) {
+        MediaDigest name = MediaDigest.create(MediaDigest.SHA256);
+        name.update(ByteBuffer.wrap(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8)));
+        return new File(getCaptureStore().getDirectory(), name.toHex() + suffix);
+    }
+
+    /**
+     * Deletes the data cached for a file that is gone.
+     */
+    private void removeCacheFiles(File file) {
+        getCaptureStore().remove(getCacheFile(MANIFEST_CACHE, file));
+        getCaptureStore().remove(getCacheFile(WAVEFORM_CACHE, file));
+    }
+
+    private JSONObject readCachedObject(File cached) {
+        if (!cached.isFile()) {
+            return null;
+        }
+        getCaptureStore().touch(cached);
+        try (InputStream in = new FileInputStream(cached)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            LOG.w(LOG_TAG, "Ignoring unreadable cache file " + cached);
+            return null;
+        }
+    }
+
+    private void writeCachedObject(File cached, JSONObject obj) throws IOException {
+        cached.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(cached)) {
+            out.write(obj.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        getCaptureStore().commitCache(cached);
+    }
+
+    /**
+     * Returns the waveform summary of an audio file, computing it only when the cached summary
+     * is missing or stale, so list screens can draw many clips without decoding them again.
+     *
+     * @param file    the audio file
+     * @param buckets the number of time slices
+     * @return the summary, or null if the file could not be read as audio
+     */
+    private JSONObject getWaveform(File file, int buckets) {
+        File cached = getCacheFile(WAVEFORM_CACHE, file);
+        JSONObject waveform = readCachedObject(cached);
+        if (waveform != null
+                && waveform.optLong("size") == file.length()
+                && waveform.optLong("lastModifiedDate") == file.lastModified()
+                && waveform.optInt("buckets") == buckets) {
+            return waveform;
+        }
+        try {
+            waveform = createWaveformObject(file, AudioWaveform.create(file, buckets));
+            writeCachedObject(cached, waveform);
+            return waveform;
+        } catch (IOException | JSONException e) {
+            LOG.e(LOG_TAG, "Error summarizing waveform of " + file, e);
+            return null;
+        }
+    }
+
+    private JSONObject createWaveformObject(File file, AudioWaveform waveform) throws JSONException {
+        JSONArray min = new JSONArray();
+        JSONArray max = new JSONArray();
+        JSONArray rms = new JSONArray();
+        for (int i = 0; i < waveform.buckets; i++) {
+            min.put(waveform.min[i]);
+            max.put(waveform.max[i]);
+            rms.put(waveform.rms[i]);
+        }
+        JSONObject obj = new JSONObject();
+        obj.put("size", file.length());
+        obj.put("lastModifiedDate", file.lastModified());
+        obj.put("buckets", waveform.buckets);
+        obj.put("duration", waveform.getDuration());
+        obj.put("sampleRate", waveform.sampleRate);
+        obj.put("channels", waveform.channels);
+        obj.put("min", min);
+        obj.put("max", max);
+        obj.put("rms", rms);
+        return obj;
+    }
+
+    /**
+     * Returns the media of requests a previous process left unresolved, typically because it was
+     * killed while the camera was in front or while a capture was being post-processed. Results
+     * that were finalized are returned as they were, and files the camera or recorder was writing
+     * are returned as written. Each request is delivered once.
+     */
+    private void recoverCaptures(final CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                JSONArray mediaFiles = new JSONArray();
+                for (RequestJournal.Entry entry : pendingRequests.takeRecovered()) {
+                    Set<String> paths = new HashSet<String>();
+                    for (String result : entry.results) {
+                        try {
+                            JSONObject mediaFile = new JSONObject(result);
+                            paths.add(mediaFile.optString("fullPath"));
+                            mediaFiles.put(mediaFile);
+                        } catch (JSONException e) {
+                            LOG.w(LOG_TAG, "Skipping unreadable recovered result");
+                        }
+                    }
+                    JSONObject state = pendingRequests.getSavedState(entry.requestCode);
+                    if (state != null) {
+                        for (String key : CAPTURE_STATE_FILES) {
+                            JSONObject mediaFile = recoverCaptureFile(state.optString(key, null), paths);
+                            if (mediaFile != null) {
+                                mediaFiles.put(mediaFile);
+                            }
+                        }
+                    }
+                    pendingRequests.resolveRecovered(entry.requestCode);
+                }
+                catalog.add(mediaFiles);
+                callbackContext.success(mediaFiles);
+            }
+        });
+    }
+
+    /**
+     * Lists the captures this plugin has returned, newest first, from its own catalog rather than
+     * the media provider.
+     *
+     * @param options limit, cursor, type, since, until, verify and compact, all optional
+     */
+    private void listCapturedMedia(final JSONObject options, final CallbackContext callbackContext) {
+        final JSONObject listOptions = options != null ? options : new JSONObject();
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject page = catalog.list(
+                            listOptions.optLong("cursor", 0),
+                            listOptions.optInt("limit", MediaCatalog.DEFAULT_LIMIT),
+                            listOptions.isNull("type") ? null : listOptions.optString("type"),
+                            listOptions.optLong("since", 0),
+                            listOptions.optLong("until", Long.MAX_VALUE),
+                            listOptions.optBoolean("verify", false));
+                    if (listOptions.optBoolean("compact", false)) {
+                        page.put("mediaFiles", CompactResults.encode(page.getJSONArray("mediaFiles")));
+                    }
+                    callbackContext.success(page);
+                } catch (JSONException e) {
+                    callbackContext.error(createErrorObject(CAPTURE_INTERNAL_ERR, "Error listing captured media."));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return a MediaFile for a capture target that holds media and is not already a result, or null
+     */
+    private JSONObject recoverCaptureFile(String uri, Set<String> resultPaths) {
+        if (uri == null) {
+            return null;
+        }
+        Uri data = Uri.parse(uri);
+        File file = webView.getResourceApi().mapUriToFile(data);
+        if (file == null || resultPaths.contains(Uri.fromFile(file).toString())) {
+            return null;
+        }
+        boolean inStore = getCaptureStore().getDirectory().equals(file.getParentFile());
+        if (file.length() == 0) {
+            // The placeholder for the kind of media that was not captured
+            if (inStore) {
+                getCaptureStore().remove(file);
+            }
+            return null;
+        }
+        if (inStore) {
+            getCaptureStore().commit(file);
+        }
+        return createMediaFile(data, null);
+    }
+
+    /**
+     * @return where the camera or recorder is writing, for finishing a request after a restart
+     */
+    private JSONObject createCaptureState() {
+        JSONObject state = new JSONObject();
+        try {
+            state.put("imageFile", imageFile != null ? Uri.fromFile(imageFile).toString() : null);
+            state.put("videoFile", videoFile != null ? Uri.fromFile(videoFile).toString() : null);
+            state.put("imageUri", imageUri != null ? imageUri.toString() : null);
+            state.put("videoUri", videoUri != null ? videoUri.toString() : null);
+            state.put("numPics", numPics);
+        } catch (JSONException e) {
+            // this will never happen
+            e.printStackTrace();
+        }
+        return state;
+    }
+
+    private void restoreCaptureState(JSONObject state) {
+        String image = state.optString("imageFile", null);
+        String video = state.optString("videoFile", null);
+        imageFile = image != null ? new File(Uri.parse(image).getPath()) : null;
+        videoFile = video != null ? new File(Uri.parse(video).getPath()) : null;
+        imageUri = state.has("imageUri") ? Uri.parse(state.optString("imageUri")) : null;
+        videoUri = state.has("videoUri") ? Uri.parse(state.optString("videoUri")) : null;
+        numPics = state.optInt("numPics");
+    }
+
+    /**
+     * Cuts a video without re-encoding it. The cut starts at the keyframe at or before start, and
+     * the trimmed copy is written to private storage so it can be released with releaseMedia.
+     * When the range covers the whole video the result is still a new file, with moov moved to
+     * the front, so releasing it never deletes the original.
+     *
+     * @param filePath path or URL of an MP4/3GP video
+     * @param start    start of the cut in seconds
+     * @param end      end of the cut in seconds
+     */
+    private void trimVideo(final String filePath, final double start, final double end, final CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = resolveMediaFile(filePath);
+                if (file == null || start < 0 || end <= start) {
+                    callbackContext.error(createErrorObject(CAPTURE_INVALID_ARGUMENT, "Invalid trim of " + filePath));
+                    return;
+                }
+                getCaptureStore().touch(file);
+
+                String extension = file.getName().endsWith(".3gp") ? ".3gp" : ".mp4";
+                File trimmed = null;
+                try {
+                    trimmed = createPrivateFile(extension);
+                    if (!Mp4Trimmer.trim(file, trimmed, start, end) && !Mp4Faststart.process(file, trimmed)) {
+                        // Nothing to cut or move, but the caller still gets a copy of its own to
+                        // release, never the original
+                        copyFile(file, trimmed);
+                    }
+                    getCaptureStore().commit(trimmed);
+                    file = trimmed;
+                } catch (IOException e) {
+                    LOG.e(LOG_TAG, "Error trimming video " + file, e);
+                    if (trimmed != null) {
+                        getCaptureStore().remove(trimmed);
+                    }
+                    callbackContext.error(createErrorObject(CAPTURE_INTERNAL_ERR, "Error trimming video."));
+                    return;
+                }
+                callbackContext.success(createMediaFile(Uri.fromFile(file), null));
+            }
+        });
+    }
+
     /**
      * Provides the media data file data depending on it's mime type
      *
@@ -189,6 +756,35 @@ public class Capture extends CordovaPlugin {
         return obj;
     }
 
+    /**
+     * Provides the media file data together with a waveform summary. Summarizing an uncached
+     * file reads all of it, so this runs on the thread pool.
+     *
+     * @param buckets the number of time slices in the waveform
+     */
+    private void getFormatData(final String filePath, final String mimeType, final int buckets, final CallbackContext callbackContext) {
+        if (buckets < 1 || buckets > AudioWaveform.MAX_BUCKETS) {
+            callbackContext.error(createErrorObject(CAPTURE_INVALID_ARGUMENT, "Invalid waveform bucket count: " + buckets));
+            return;
+        }
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    JSONObject obj = getFormatData(filePath, mimeType);
+                    File file = resolveMediaFile(filePath);
+                    JSONObject waveform = file != null ? getWaveform(file, buckets) : null;
+                    if (waveform != null) {
+                        obj.put("waveform", waveform);
+                    }
+                    callbackContext.success(obj);
+                } catch (JSONException e) {
+                    callbackContext.error(createErrorObject(CAPTURE_INTERNAL_ERR, "Error reading format data."));
+                }
+            }
+        });
+    }
+
     /**
      * Get the Image specific attributes
      *
@@ -231,48 +827,166 @@ public class Capture extends CordovaPlugin {
         return obj;
     }
 
-    private boolean isMissingPermissions(Request req, ArrayList<String> permissions) {
-        ArrayList<String> missingPermissions = new ArrayList<>();
+    private boolean isMissingPermissions(Request req, String... permissions) {
+        CaptureCapabilities capabilities = getCapabilities();
+        String[] missing = null;
+        int count = 0;
         for (String permission : permissions) {
-            if (!PermissionHelper.hasPermission(this, permission)) {
-                missingPermissions.add(permission);
+            if (!capabilities.hasPermission(this, permission)) {
+                if (missing == null) {
+                    missing = new String[permissions.length];
+                }
+                missing[count++] = permission;
             }
         }
 
-        boolean isMissingPermissions = missingPermissions.size() > 0;
-        if (isMissingPermissions) {
-            String[] missing = missingPermissions.toArray(new String[missingPermissions.size()]);
-            PermissionHelper.requestPermissions(this, req.requestCode, missing);
+        if (missing != null) {
+            PermissionHelper.requestPermissions(this, req.requestCode, Arrays.copyOf(missing, count));
         }
-        return isMissingPermissions;
+        return missing != null;
     }
 
     private boolean isMissingStoragePermissions(Request req) {
-        return isMissingPermissions(req, new ArrayList<>(Arrays.asList(storagePermissions)));
+        return isMissingPermissions(req, getCapabilities().getStoragePermissions());
     }
 
     private boolean isMissingCameraPermissions(Request req) {
-        ArrayList<String> cameraPermissions = new ArrayList<>(Arrays.asList(storagePermissions));
-        if (cameraPermissionInManifest) {
-            cameraPermissions.add(Manifest.permission.CAMERA);
+        return isMissingPermissions(req, getCapabilities().getCameraPermissions());
+    }
+
+    /**
+     * Capabilities of the app and device. Each is probed the first time it is needed, so captures
+     * only read the manifest and never scan capture apps or codecs.
+     */
+    private synchronized CaptureCapabilities getCapabilities() {
+        if (capabilities == null) {
+            capabilities = new CaptureCapabilities(cordova.getActivity());
         }
-        return isMissingPermissions(req, cameraPermissions);
+        return capabilities;
     }
 
     /**
      * Sets up an intent to capture audio.  Result handled by onActivityResult()
      */
     private void captureAudio(Request req) {
+        if (RECORDER_NATIVE.equals(req.recorder)) {
+            captureAudioNative(req);
+            return;
+        }
+        // The recorder activity saves its clip to the MediaStore, where it cannot be sealed
+        if (req.encrypt) {
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_NOT_SUPPORTED, "Encryption requires recorder: 'native'."));
+            return;
+        }
+
         if (isMissingStoragePermissions(req)) return;
 
         try {
             Intent intent = new Intent(android.provider.MediaStore.Audio.Media.RECORD_SOUND_ACTION);
+            pendingRequests.syncJournal();
             this.cordova.startActivityForResult((CordovaPlugin) this, intent, req.requestCode);
         } catch (ActivityNotFoundException ex) {
             pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_NOT_SUPPORTED, "No Activity found to handle Audio Capture."));
         }
     }
 
+    /**
+     * Records one clip in-process into private storage, skipping the switch to a recorder
+     * activity. Recording ends after the requested duration or when stopAudioCapture is called.
+     */
+    private void captureAudioNative(final Request req) {
+        if (isMissingPermissions(req, Manifest.permission.RECORD_AUDIO)) return;
+
+        if (req.channels < 1 || req.channels > 2 || req.sampleRate <= 0) {
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_INVALID_ARGUMENT, "Unsupported recording format."));
+            return;
+        }
+        if (req.encrypt && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_NOT_SUPPORTED, "Encryption requires Android 6.0 or later."));
+            return;
+        }
+
+        File file = null;
+        PcmSink sink = null;
+        try {
+            final AudioRecorder recorder;
+            synchronized (this) {
+                if (audioRecorder != null) {
+                    pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_APPLICATION_BUSY, "A recording is already in progress."));
+                    return;
+                }
+
+                // Fall back to WAV where the device has no AAC encoder for this format
+                boolean aac = FORMAT_AAC.equals(req.format) && AdtsWriter.isSupported(req.sampleRate, req.channels);
+                file = createPrivateFile(aac ? ".aac" : ".wav");
+                JSONObject state = new JSONObject();
+                state.put("audioFile", Uri.fromFile(file).toString());
+                pendingRequests.saveState(req, state);
+                sink = aac
+                        ? new AdtsWriter(file, req.sampleRate, req.channels, AAC_BIT_RATE_PER_CHANNEL * req.channels)
+                        : new WavWriter(file, req.sampleRate, req.channels);
+                long maxFrames = req.duration > 0 ? (long) req.duration * req.sampleRate : Long.MAX_VALUE;
+                final File recording = file;
+                recorder = new AudioRecorder(sink, req.sampleRate, req.channels, maxFrames, new AudioRecorder.Listener() {
+                    @Override
+                    public void onFinished(long frames, long droppedSamples) {
+                        clearAudioRecorder();
+                        if (droppedSamples > 0) {
+                            LOG.w(LOG_TAG, "Dropped " + droppedSamples + " samples while recording " + recording);
+                        }
+                        PrivateCapture result = new PrivateCapture(recording, null);
+                        WavProcessor.Options processing = createWavOptions(req.trimSilence, req.silenceThreshold, req.silenceHangover, req.normalize);
+                        if (processing != null && recording.getName().endsWith(".wav")) {
+                            result = rewritePrivateFile(req, result, processWav(processing));
+                        }
+                        if (FORMAT_FLAC.equals(req.format)) {
+                            result = rewritePrivateFile(req, result, ".flac", FLAC);
+                        }
+                        if (req.encrypt) {
+                            resolveEncryptedRecording(req, result);
+                        } else {
+                            resolvePrivateCapture(req, result, null, null);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        clearAudioRecorder();
+                        LOG.e(LOG_TAG, "Error recording audio", e);
+                        getCaptureStore().remove(recording);
+                        pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_INTERNAL_ERR, "Error recording audio."));
+                    }
+                });
+                audioRecorder = recorder;
+            }
+            recorder.start();
+        } catch (IOException | JSONException e) {
+            LOG.e(LOG_TAG, "Unable to start recording", e);
+            clearAudioRecorder();
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException closeError) {
+                    // the recording is discarded anyway
+                }
+            }
+            if (file != null) {
+                getCaptureStore().remove(file);
+            }
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_NOT_SUPPORTED, "Unable to start recording."));
+        }
+    }
+
+    private synchronized void stopAudioCapture() {
+        if (audioRecorder != null) {
+            audioRecorder.stop();
+        }
+    }
+
+    private synchronized void clearAudioRecorder() {
+        audioRecorder = null;
+    }
+
     private String getTempDirectoryPath() {
         File cache = null;
 
@@ -284,22 +998,77 @@ public class Capture extends CordovaPlugin {
         return cache.getAbsolutePath();
     }
 
+    /**
+     * Maps a path or URL passed from JavaScript, such as the fullPath or the cdvfile localURL of a
+     * MediaFile, to a file the media actions may process. Only files in the app's own directories,
+     * which include the capture store, and captures this plugin returned are accepted, so these
+     * actions cannot be used to read or decrypt arbitrary files.
+     *
+     * @param filePath path, file URL or any URL the webview's resource API maps to a file
+     * @return the file, or null if it does not exist or may not be processed
+     */
+    private File resolveMediaFile(String filePath) {
+        Uri uri = filePath.startsWith("/") ? Uri.fromFile(new File(filePath)) : Uri.parse(filePath);
+        File file = webView.getResourceApi().mapUriToFile(uri);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        if (catalog.contains(Uri.fromFile(file).toString())) {
+            return file;
+        }
+
+        Context context = cordova.getActivity();
+        File[] roots = {context.getFilesDir(), context.getCacheDir(), context.getExternalFilesDir(null), context.getExternalCacheDir()};
+        try {
+            // Canonical paths resolve ".." segments and symbolic links out of the app directories
+            String path = file.getCanonicalPath();
+            for (File root : roots) {
+                if (root != null && path.startsWith(root.getCanonicalPath() + File.separator)) {
+                    return file;
+                }
+            }
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to resolve " + file, e);
+        }
+        return null;
+    }
+
     /**
      * Sets up an intent to capture media.  Result handled by onActivityResult()
      */
     private void captureImageOrVideo(Request req) {
         if (isMissingCameraPermissions(req)) return;
 
-        // Save the number of images currently on disk for later
-        this.numPics = queryImgDB(whichContentStore()).getCount();
+        if (req.encrypt && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_NOT_SUPPORTED, "Encryption requires Android 6.0 or later."));
+            return;
+        }
 
         try {
-            ContentResolver contentResolver = this.cordova.getActivity().getContentResolver();
-            Pair mediaTypes = setupContentValues();
+            Intent takeVideoIntent;
+            Intent takePictureIntent;
+
+            if (STORAGE_PRIVATE.equals(req.storage)) {
+                // Private captures never touch the MediaStore, so there is nothing to count
+                takeVideoIntent = setupPrivateVideoIntent(req);
+                takePictureIntent = setupPrivatePictureIntent();
+            } else {
+                imageFile = null;
+                videoFile = null;
+
+                // Save the number of images currently on disk for later
+                this.numPics = queryImgDB(whichContentStore()).getCount();
+
+                ContentResolver contentResolver = this.cordova.getActivity().getContentResolver();
+                Pair mediaTypes = setupContentValues();
 
-            //create intents to be used in chooser
-            Intent takeVideoIntent = setupVideoIntent(req, contentResolver, mediaTypes);
-            Intent takePictureIntent = setupPictureIntent(contentResolver, mediaTypes);
+                //create intents to be used in chooser
+                takeVideoIntent = setupVideoIntent(req, contentResolver, mediaTypes);
+                takePictureIntent = setupPictureIntent(contentResolver, mediaTypes);
+            }
+
+            // The process may be killed while the camera is in front
+            pendingRequests.saveState(req, createCaptureState());
 
             if (multipleImageReq) {
                 this.cordova.startActivityForResult((CordovaPlugin) this, takePictureIntent, req.requestCode);
@@ -365,6 +1134,111 @@ public class Capture extends CordovaPlugin {
     }
 
 
+    /**
+     * Create the intent to capture images into an app-private file exposed through CaptureProvider.
+     * No MediaStore row is created, so the image is never scanned or shown in the gallery.
+     *
+     *  @return the intent required to initiate the native camera
+     */
+    private Intent setupPrivatePictureIntent() throws IOException {
+        imageUri = null;
+        imageFile = createPrivateFile(".jpg");
+
+        Intent takePictureIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
+        takePictureIntent.putExtra(MediaStore.EXTRA_OUTPUT, getProviderUri(imageFile));
+        takePictureIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+
+        return takePictureIntent;
+    }
+
+    /**
+     * Create the intent to capture videos into an app-private file exposed through CaptureProvider.
+     *
+     *  @param req
+     *
+     *  @return the intent required to initiate the native camera
+     */
+    private Intent setupPrivateVideoIntent(Request req) throws IOException {
+        videoUri = null;
+        videoFile = createPrivateFile(".mp4");
+
+        Intent takeVideoIntent = new Intent(MediaStore.ACTION_VIDEO_CAPTURE);
+        takeVideoIntent.putExtra(MediaStore.EXTRA_OUTPUT, getProviderUri(videoFile));
+        takeVideoIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        takeVideoIntent.putExtra("android.intent.extra.durationLimit", req.duration);
+        takeVideoIntent.putExtra("android.intent.extra.videoQuality", req.quality);
+
+        return takeVideoIntent;
+    }
+
+    /**
+     * Store used for private storage captures. It lives in a subdirectory of the cache directory
+     * returned by getTempDirectoryPath(); setting the AndroidMediaCapturePrivateDirectory preference
+     * to "files" keeps captures in the app's files directory so the system never purges them.
+     * The AndroidMediaCaptureCacheQuotaMB preference bounds the cache files kept in it. Files a
+     * previous process was still writing are reclaimed when the store is first used, unless the
+     * journal says recoverCaptures may return them.
+     */
+    private synchronized CaptureStore getCaptureStore() {
+        if (captureStore == null) {
+            File parent;
+            if ("files".equals(preferences.getString(PRIVATE_DIRECTORY_PREFERENCE, "cache"))) {
+                parent = cordova.getActivity().getFilesDir();
+            } else {
+                parent = new File(getTempDirectoryPath());
+            }
+            long quota = (long) preferences.getInteger(CACHE_QUOTA_PREFERENCE, DEFAULT_CACHE_QUOTA_MB) * 1024 * 1024;
+            captureStore = new CaptureStore(new File(parent, STORE_DIRECTORY), quota, MANIFEST_CACHE, WAVEFORM_CACHE);
+            captureStore.reclaimPending(getJournaledFileNames());
+        }
+        return captureStore;
+    }
+
+    /**
+     * @return the names of the files that requests left unresolved by a previous process were
+     *         writing or had returned, which recoverCaptures may still deliver
+     */
+    private Set<String> getJournaledFileNames() {
+        Set<String> names = new HashSet<String>();
+        for (RequestJournal.Entry entry : pendingRequests.getJournaled()) {
+            try {
+                for (String result : entry.results) {
+                    names.add(Uri.parse(new JSONObject(result).optString("fullPath")).getLastPathSegment());
+                }
+                if (entry.state != null) {
+                    JSONObject state = new JSONObject(entry.state);
+                    for (String key : CAPTURE_STATE_FILES) {
+                        String uri = state.optString(key, null);
+                        if (uri != null) {
+                            names.add(Uri.parse(uri).getLastPathSegment());
+                        }
+                    }
+                }
+            } catch (JSONException e) {
+                LOG.w(LOG_TAG, "Skipping unreadable journaled request " + entry.requestCode);
+            }
+        }
+        return names;
+    }
+
+    private synchronized ContentStore getContentStore() {
+        if (contentStore == null) {
+            contentStore = new ContentStore(getCaptureStore());
+        }
+        return contentStore;
+    }
+
+    private File createPrivateFile(String extension) throws IOException {
+        File file = getCaptureStore().newFile(extension);
+        createWritableFile(file);
+        return file;
+    }
+
+    private Uri getProviderUri(File file) {
+        String authority = cordova.getActivity().getPackageName() + PROVIDER_AUTHORITY_SUFFIX;
+        return FileProvider.getUriForFile(cordova.getActivity(), authority, file);
+    }
+
     /**
      * create media type for content resolver
      * 
@@ -387,6 +1261,15 @@ public class Capture extends CordovaPlugin {
         file.setWritable(true, false);
     }
 
+    /**
+     * Copies a whole file, for results that must not share a path with the file they came from.
+     */
+    private static void copyFile(File source, File target) throws IOException {
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(target).getChannel()) {
+            Mp4Box.transfer(in, 0, in.size(), out);
+        }
+    }
 
     /**
      * Called when the video view exits.
@@ -399,6 +1282,17 @@ public class Capture extends CordovaPlugin {
      */
     public void onActivityResult(int requestCode, int resultCode, final Intent intent) {
         final Request req = pendingRequests.get(requestCode);
+        if (req == null) {
+            LOG.w(LOG_TAG, "No pending request for result " + requestCode);
+            return;
+        }
+        // After process death the capture targets are only known from the journal
+        if (imageFile == null && videoFile == null && imageUri == null && videoUri == null) {
+            JSONObject state = pendingRequests.getSavedState(requestCode);
+            if (state != null) {
+                restoreCaptureState(state);
+            }
+        }
         // Result received okay
         if (resultCode == Activity.RESULT_OK) {
             Runnable processActivityResult = new Runnable() {
@@ -411,7 +1305,13 @@ public class Capture extends CordovaPlugin {
                             break;
                         case CAPTURE_IMAGE_OR_VIDEO:
 
-                            if (checkURIResource(videoUri)) {
+                            if (STORAGE_PRIVATE.equals(req.storage)) {
+                                if (videoFile != null && videoFile.length() > 0) {
+                                    onPrivateVideoActivityResult(req);
+                                } else {
+                                    onPrivateImageActivityResult(req);
+                                }
+                            } else if (checkURIResource(videoUri)) {
                                 onVideoActivityResult(req);
                             } else {
                                 onImageActivityResult(req);
@@ -457,7 +1357,19 @@ public class Capture extends CordovaPlugin {
      */
     private void CleanUpEmptyVideo()
     {
-        if(videoUri != null) {
+        if (videoFile != null) {
+            final File emptyVideo = videoFile;
+            final File emptyImage = imageFile;
+            Runnable processActivityResult = new Runnable() {
+                @Override
+                public void run() {
+                    deleteIfEmpty(emptyVideo);
+                    deleteIfEmpty(emptyImage);
+                }
+            };
+
+            this.cordova.getThreadPool().execute(processActivityResult);
+        } else if(videoUri != null) {
             //Run in runnable, since we cannot call getResourceApi in the UI thread
             Runnable processActivityResult = new Runnable() {
                 @Override
@@ -473,6 +1385,12 @@ public class Capture extends CordovaPlugin {
         }
     }
 
+    private void deleteIfEmpty(File file) {
+        if (file != null && file.exists() && file.length() == 0) {
+            getCaptureStore().remove(file);
+        }
+    }
+
     /**
      * called to check if video was captured or not. need to do this because content resolver is being used
      * so you can't use the traditional method of checking the file to see if it exists or not
@@ -512,7 +1430,7 @@ public class Capture extends CordovaPlugin {
         Uri data = intent.getData();
 
         // create a file object from the uri
-        req.results.put(createMediaFile(data));
+        pendingRequests.addResult(req, createMediaFile(data, req));
 
         if (req.results.length() >= req.limit) {
             // Send Uri back to JavaScript for listening to audio
@@ -528,6 +1446,7 @@ public class Capture extends CordovaPlugin {
     public void onImageActivityResult(Request req) {
    
         String path = null;
+        Long perceptualHash = null;
         try (InputStream imageStream = cordova.getActivity().getContentResolver().openInputStream(imageUri)){
 
             Bitmap bmp = BitmapFactory.decodeStream(imageStream);
@@ -538,6 +1457,9 @@ public class Capture extends CordovaPlugin {
             bmp = BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length);
 
             bmp = rotateImage(bmp, 90);
+            if (req.perceptualHash) {
+                perceptualHash = PerceptualHash.dHash(bmp);
+            }
             path = MediaStore.Images.Media.insertImage(cordova.getContext().getContentResolver(), bmp, "Title", null);
             copyExif(imageUri, path);
 
@@ -546,7 +1468,11 @@ public class Capture extends CordovaPlugin {
         }
 
       
-        req.results.put(createMediaFile(Uri.parse(path)));
+        JSONObject mediaFile = createMediaFile(Uri.parse(path), req);
+        if (perceptualHash != null) {
+            putPerceptualHash(mediaFile, perceptualHash, req);
+        }
+        pendingRequests.addResult(req, mediaFile);
         checkForDuplicateImage();
 
         // Send Uri back to JavaScript for viewing image
@@ -608,6 +1534,476 @@ public class Capture extends CordovaPlugin {
         }
 
     }
+    /**
+     * Processes an image captured into private storage. The rotated JPEG is written straight to a
+     * new private file through a FileChannel; unlike onImageActivityResult no MediaStore row is
+     * inserted and no duplicate check against the gallery is needed.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public void onPrivateImageActivityResult(Request req) {
+        File rawFile = imageFile;
+        deleteIfEmpty(videoFile);
+        // After a restart the file is only known if the journal recorded the request's state
+        if (rawFile == null) {
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_INTERNAL_ERR, "Error: image file is unknown"));
+            return;
+        }
+
+        File processedFile = null;
+        MediaDigest[] digests = createDigests(req);
+        Long perceptualHash = null;
+        JSONObject encryption = null;
+        try {
+            Bitmap bmp = BitmapFactory.decodeFile(rawFile.getAbsolutePath());
+            if (bmp == null) {
+                throw new IOException("Unable to decode " + rawFile);
+            }
+            bmp = rotateImage(bmp, 90);
+            if (req.perceptualHash) {
+                perceptualHash = PerceptualHash.dHash(bmp);
+            }
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            bmp.compress(Bitmap.CompressFormat.JPEG, 80, stream);
+            bmp.recycle();
+
+            // The original EXIF segment is spliced into the JPEG before it is written, so the file
+            // is final after one write (a sealed file could not be rewritten anyway) and the
+            // digests are fed from the same bytes
+            ByteBuffer jpeg = ByteBuffer.wrap(insertExifSegment(stream.toByteArray(), readExifSegment(rawFile)));
+            MediaDigest.update(jpeg, digests);
+
+            processedFile = createPrivateFile(".jpg");
+            if (req.encrypt) {
+                try (MediaEncryption.EncryptingChannel channel = openEncryptingChannel(req, processedFile)) {
+                    channel.write(jpeg);
+                    encryption = createEncryptionObject(channel);
+                }
+            } else {
+                try (FileChannel channel = new FileOutputStream(processedFile).getChannel()) {
+                    while (jpeg.hasRemaining()) {
+                        channel.write(jpeg);
+                    }
+                }
+            }
+            getCaptureStore().remove(rawFile);
+        } catch (IOException | GeneralSecurityException e) {
+            LOG.e(LOG_TAG, "Error writing private image", e);
+            if (processedFile != null) {
+                getCaptureStore().remove(processedFile);
+            }
+            getCaptureStore().remove(rawFile);
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_INTERNAL_ERR, "Error writing image."));
+            return;
+        }
+
+        // Send Uri back to JavaScript for viewing image
+        resolvePrivateCapture(req, new PrivateCapture(processedFile, digests), perceptualHash, encryption);
+    }
+
+    /**
+     * Returns a video captured into private storage. The camera already wrote the final file, so
+     * it is only rewritten to enforce the duration limit or apply faststart. If encryption was
+     * requested the trimmed or faststart copy is written straight through the cipher, or the
+     * camera's file is copied through it unchanged, and the plaintext deleted; the digests are fed
+     * with the plaintext in that same pass, so no plaintext intermediate is ever written.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public void onPrivateVideoActivityResult(Request req) {
+        deleteIfEmpty(imageFile);
+        // After a restart the file is only known if the journal recorded the request's state
+        if (videoFile == null) {
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_INTERNAL_ERR, "Error: video file is unknown"));
+            return;
+        }
+
+        if (!req.encrypt) {
+            PrivateCapture plain = new PrivateCapture(videoFile, null);
+            if (req.duration > 0) {
+                plain = rewritePrivateFile(req, plain, trimTo(req.duration));
+            }
+            if (req.faststart) {
+                plain = rewritePrivateFile(req, plain, FASTSTART);
+            }
+            resolvePrivateCapture(req, plain, null, null);
+            return;
+        }
+
+        File plainFile = videoFile;
+        MediaDigest[] digests = createDigests(req);
+        File sealedFile = null;
+        JSONObject encryption;
+        try {
+            sealedFile = createPrivateFile(".mp4");
+            try (MediaEncryption.EncryptingChannel channel = openEncryptingChannel(req, sealedFile)) {
+                // The trimmed output already has moov first, so faststart only runs when nothing
+                // was cut; neither writes anything when it returns false
+                boolean rewritten = req.duration > 0 && Mp4Trimmer.trim(plainFile, channel, 0, req.duration, digests);
+                if (!rewritten && req.faststart) {
+                    rewritten = Mp4Faststart.process(plainFile, channel, digests);
+                }
+                if (!rewritten) {
+                    encryptFile(plainFile, channel, digests);
+                }
+                encryption = createEncryptionObject(channel);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            LOG.e(LOG_TAG, "Error encrypting private video", e);
+            if (sealedFile != null) {
+                getCaptureStore().remove(sealedFile);
+            }
+            getCaptureStore().remove(plainFile);
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_INTERNAL_ERR, "Error encrypting video."));
+            return;
+        }
+        getCaptureStore().remove(plainFile);
+
+        resolvePrivateCapture(req, new PrivateCapture(sealedFile, digests), null, encryption);
+    }
+
+    /**
+     * Returns a native recording sealed like a private video. The recorder patches its header
+     * once recording ends, so the finished clip is streamed through the cipher into a new file
+     * and the plaintext deleted; the digests are fed with the plaintext in that same copy unless
+     * post-processing already fed them.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void resolveEncryptedRecording(Request req, PrivateCapture plain) {
+        MediaDigest[] digests = plain.digests != null ? plain.digests : createDigests(req);
+        MediaDigest[] copyDigests = plain.digests != null ? new MediaDigest[0] : digests;
+        String name = plain.file.getName();
+        File sealedFile = null;
+        JSONObject encryption;
+        try {
+            sealedFile = createPrivateFile(name.substring(Math.max(0, name.lastIndexOf('.'))));
+            try (MediaEncryption.EncryptingChannel channel = openEncryptingChannel(req, sealedFile)) {
+                encryptFile(plain.file, channel, copyDigests);
+                encryption = createEncryptionObject(channel);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            LOG.e(LOG_TAG, "Error encrypting recording", e);
+            if (sealedFile != null) {
+                getCaptureStore().remove(sealedFile);
+            }
+            getCaptureStore().remove(plain.file);
+            pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_INTERNAL_ERR, "Error encrypting audio."));
+            return;
+        }
+        getCaptureStore().remove(plain.file);
+
+        resolvePrivateCapture(req, new PrivateCapture(sealedFile, digests), null, encryption);
+    }
+
+    /**
+     * Streams a whole file through the cipher, feeding the digests with the plaintext.
+     */
+    private static void encryptFile(File in, MediaEncryption.EncryptingChannel channel, MediaDigest... digests) throws IOException {
+        try (FileChannel input = new FileInputStream(in).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(MediaEncryption.DEFAULT_CHUNK_SIZE);
+            while (input.read(buffer) != -1) {
+                buffer.flip();
+                MediaDigest.update(buffer, digests);
+                channel.write(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Rewrites a captured file into a new file. Implementations return false when the file
+     * needs no change, in which case the output file is discarded. When they return true every
+     * byte of the output has been fed to the digests.
+     */
+    private interface MediaRewriter {
+        boolean rewrite(File in, File out, MediaDigest... digests) throws IOException;
+    }
+
+    private static final MediaRewriter FASTSTART = new MediaRewriter() {
+        @Override
+        public boolean rewrite(File in, File out, MediaDigest... digests) throws IOException {
+            return Mp4Faststart.process(in, out, digests);
+        }
+    };
+
+    private static final MediaRewriter FLAC = new MediaRewriter() {
+        @Override
+        public boolean rewrite(File in, File out, MediaDigest... digests) throws IOException {
+            FlacEncoder.encode(in, out);
+            // STREAMINFO at the start of the file is only final after the last frame, so this is
+            // the one output that has to be read back to digest it
+            if (digests.length > 0) {
+                MediaDigest.digestFile(out, digests);
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Trims silence from and normalizes a WAV recording.
+     */
+    private static MediaRewriter processWav(final WavProcessor.Options options) {
+        return new MediaRewriter() {
+            @Override
+            public boolean rewrite(File in, File out, MediaDigest... digests) throws IOException {
+                return WavProcessor.process(in, out, options, digests) != null;
+            }
+        };
+    }
+
+    /**
+     * Reads audio post-processing options, from capture options or a processAudio call.
+     *
+     * @return the options, or null if no processing was requested
+     */
+    private static WavProcessor.Options createWavOptions(boolean trimSilence, double thresholdDbfs, int hangoverMs, double normalizeDbfs) {
+        if (!trimSilence && Double.isNaN(normalizeDbfs)) {
+            return null;
+        }
+        WavProcessor.Options options = new WavProcessor.Options();
+        options.trimSilence = trimSilence;
+        options.silenceThresholdDbfs = thresholdDbfs;
+        options.hangoverMs = hangoverMs;
+        options.normalizeDbfs = normalizeDbfs;
+        return options;
+    }
+
+    /**
+     * Enforces a duration limit the camera application may have ignored. The output already has
+     * moov first, so a following faststart pass leaves it untouched.
+     */
+    private static MediaRewriter trimTo(final double duration) {
+        return new MediaRewriter() {
+            @Override
+            public boolean rewrite(File in, File out, MediaDigest... digests) throws IOException {
+                return Mp4Trimmer.trim(in, out, 0, duration, digests);
+            }
+        };
+    }
+
+    /**
+     * A private capture file and the digests fed while the plugin wrote it. The digests are null
+     * when the file was written by the camera application or the recorder, whose headers are
+     * patched at the end, and has to be read back to digest it.
+     */
+    private static class PrivateCapture {
+        final File file;
+        final MediaDigest[] digests;
+
+        PrivateCapture(File file, MediaDigest[] digests) {
+            this.file = file;
+            this.digests = digests;
+        }
+    }
+
+    /**
+     * Applies a rewriter to a private capture, replacing it in the store when it changed.
+     *
+     * @return the capture now holding the media
+     */
+    private PrivateCapture rewritePrivateFile(Request req, PrivateCapture capture, MediaRewriter rewriter) {
+        String name = capture.file.getName();
+        return rewritePrivateFile(req, capture, name.substring(Math.max(0, name.lastIndexOf('.'))), rewriter);
+    }
+
+    /**
+     * Applies a rewriter that changes the container of a private capture. The digests the
+     * request needs are fed while the rewritten file is written.
+     *
+     * @param extension the extension of the rewritten file, including the dot
+     * @return the capture now holding the media
+     */
+    private PrivateCapture rewritePrivateFile(Request req, PrivateCapture capture, String extension, MediaRewriter rewriter) {
+        File rewritten = null;
+        try {
+            rewritten = createPrivateFile(extension);
+            MediaDigest[] digests = createDigests(req);
+            if (rewriter.rewrite(capture.file, rewritten, digests)) {
+                getCaptureStore().remove(capture.file);
+                return new PrivateCapture(rewritten, digests);
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error rewriting " + capture.file, e);
+        }
+        if (rewritten != null) {
+            getCaptureStore().remove(rewritten);
+        }
+        return capture;
+    }
+
+    /**
+     * Applies a rewriter to a video owned by the MediaStore. The rewritten file is staged in the
+     * cache directory and copied back over the MediaStore entry.
+     */
+    private void rewritePublicVideo(Uri video, MediaRewriter rewriter) {
+        File tmp = null;
+        try {
+            File file = webView.getResourceApi().mapUriToFile(video);
+            tmp = File.createTempFile("capture", ".mp4", new File(getTempDirectoryPath()));
+            if (file != null && rewriter.rewrite(file, tmp)) {
+                ContentResolver contentResolver = this.cordova.getActivity().getContentResolver();
+                try (FileChannel in = new FileInputStream(tmp).getChannel();
+                     ParcelFileDescriptor pfd = contentResolver.openFileDescriptor(video, "rwt");
+                     FileChannel out = new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
+                    Mp4Box.transfer(in, 0, in.size(), out);
+                    out.truncate(in.size());
+                }
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error rewriting video " + video, e);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private MediaEncryption.EncryptingChannel openEncryptingChannel(Request req, File file) throws IOException, GeneralSecurityException {
+        SecretKey masterKey = MediaEncryption.getMasterKey(req.keyAlias);
+        return new MediaEncryption.EncryptingChannel(new FileOutputStream(file).getChannel(), masterKey, req.keyAlias, MediaEncryption.DEFAULT_CHUNK_SIZE);
+    }
+
+    private JSONObject createEncryptionObject(MediaEncryption.EncryptingChannel channel) {
+        JSONObject obj = new JSONObject();
+        try {
+            obj.put("scheme", MediaEncryption.SCHEME);
+            obj.put("algorithm", MediaEncryption.ALGORITHM);
+            obj.put("keyId", channel.getKeyAlias());
+            obj.put("iv", Base64.encodeToString(channel.getNoncePrefix(), Base64.NO_WRAP));
+            obj.put("chunkSize", channel.getChunkSize());
+        } catch (JSONException e) {
+            // this will never happen
+            e.printStackTrace();
+        }
+        return obj;
+    }
+
+    /**
+     * Returns the APP1 Exif segment of a JPEG, including its marker, or null if it has none.
+     */
+    private static byte[] readExifSegment(File jpeg) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(jpeg)))) {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return null;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                // Start of scan or a corrupt marker: the metadata segments are over
+                if (marker == 0xFFDA || (marker & 0xFF00) != 0xFF00) {
+                    return null;
+                }
+                int length = in.readUnsignedShort();
+                byte[] segment = new byte[length + 2];
+                segment[0] = (byte) (marker >> 8);
+                segment[1] = (byte) marker;
+                segment[2] = (byte) (length >> 8);
+                segment[3] = (byte) length;
+                in.readFully(segment, 4, length - 2);
+                if (marker == 0xFFE1 && length > 8 && segment[4] == 'E' && segment[5] == 'x'
+                        && segment[6] == 'i' && segment[7] == 'f') {
+                    return segment;
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Inserts an APP1 segment after the SOI and any APP0 (JFIF) segment of an encoded JPEG.
+     */
+    private static byte[] insertExifSegment(byte[] jpeg, byte[] exif) {
+        if (exif == null || jpeg.length < 4) {
+            return jpeg;
+        }
+        int offset = 2;
+        if ((jpeg[2] & 0xFF) == 0xFF && (jpeg[3] & 0xFF) == 0xE0) {
+            offset += 2 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+        }
+        byte[] out = new byte[jpeg.length + exif.length];
+        System.arraycopy(jpeg, 0, out, 0, offset);
+        System.arraycopy(exif, 0, out, offset, exif.length);
+        System.arraycopy(jpeg, offset, out, offset + exif.length, jpeg.length - offset);
+        return out;
+    }
+
+    /**
+     * Creates the digests to feed while a private capture is written: those requested for the
+     * result, followed by a SHA-256 for deduplication when it was not requested anyway.
+     */
+    private static MediaDigest[] createDigests(Request req) {
+        MediaDigest[] digests = MediaDigest.create(req.digests);
+        if (!req.dedupe || Arrays.asList(req.digests).contains(MediaDigest.SHA256)) {
+            return digests;
+        }
+        digests = Arrays.copyOf(digests, digests.length + 1);
+        digests[digests.length - 1] = MediaDigest.create(MediaDigest.SHA256);
+        return digests;
+    }
+
+    /**
+     * Commits a finished private capture to the store and resolves the request with it. When
+     * deduplication is requested the file is moved to its content address. The digests fed while
+     * the plugin wrote the file are used as they are; only a file written elsewhere is read back,
+     * in one pass for every digest. For a sealed file they cover the plaintext media.
+     *
+     * @param perceptualHash the dHash computed while processing an image, or null
+     * @param encryption     the encryption metadata of a sealed file, or null
+     */
+    private void resolvePrivateCapture(Request req, PrivateCapture capture, Long perceptualHash, JSONObject encryption) {
+        File file = capture.file;
+        JSONObject digest = null;
+        String sha256Hex = null;
+        MediaDigest[] digests = capture.digests;
+        try {
+            if (digests == null) {
+                digests = createDigests(req);
+                if (digests.length > 0) {
+                    MediaDigest.digestFile(file, digests);
+                }
+            }
+            if (req.digests.length > 0) {
+                digest = new JSONObject();
+            }
+            for (int i = 0; i < digests.length; i++) {
+                String hex = digests[i].toHex();
+                if (MediaDigest.SHA256.equals(digests[i].getName())) {
+                    sha256Hex = hex;
+                }
+                // A SHA-256 added only for deduplication is not part of the result
+                if (i < req.digests.length) {
+                    digest.put(digests[i].getName(), hex);
+                }
+            }
+        } catch (IOException | JSONException e) {
+            LOG.e(LOG_TAG, "Error computing digest for " + file, e);
+            digest = null;
+            sha256Hex = null;
+        }
+
+        // Every sealed file has its own data key, so encrypted captures never share content
+        if (req.dedupe && encryption == null && sha256Hex != null) {
+            file = getContentStore().add(file, sha256Hex);
+        } else {
+            getCaptureStore().commit(file);
+        }
+
+        JSONObject mediaFile = createMediaFile(Uri.fromFile(file), req, digest);
+        if (perceptualHash != null) {
+            putPerceptualHash(mediaFile, perceptualHash, req);
+        }
+        if (encryption != null) {
+            try {
+                mediaFile.put("encryption", encryption);
+            } catch (JSONException e) {
+                // this will never happen
+                e.printStackTrace();
+            }
+        }
+        pendingRequests.addResult(req, mediaFile);
+        pendingRequests.resolveWithSuccess(req);
+    }
+
     public void onVideoActivityResult(Request req) {
         Uri data = null;
         // Get the uri of the video clip
@@ -623,7 +2019,13 @@ public class Capture extends CordovaPlugin {
             pendingRequests.resolveWithFailure(req, createErrorObject(CAPTURE_NO_MEDIA_FILES, "Error: data is null"));
         } else {
 
-            req.results.put(createMediaFile(videoUri));
+            if (req.duration > 0) {
+                rewritePublicVideo(videoUri, trimTo(req.duration));
+            }
+            if (req.faststart) {
+                rewritePublicVideo(videoUri, FASTSTART);
+            }
+            pendingRequests.addResult(req, createMediaFile(videoUri, req));
             // Send Uri back to JavaScript for viewing video
 
             //Add these commented lines back in if you want the plugin to control the reexecution of the camera intents instead of the external control
@@ -642,10 +2044,23 @@ public class Capture extends CordovaPlugin {
      * Creates a JSONObject that represents a File from the Uri
      *
      * @param data the Uri of the audio/image/video
+     * @param req  the request the file belongs to, used for the requested digests, or null
      * @return a JSONObject that represents a File
      * @throws IOException
      */
-    private JSONObject createMediaFile(Uri data) {
+    private JSONObject createMediaFile(Uri data, Request req) {
+        return createMediaFile(data, req, null);
+    }
+
+    /**
+     * Creates a JSONObject that represents a File from the Uri
+     *
+     * @param data   the Uri of the audio/image/video
+     * @param req    the request the file belongs to, used for the requested digests, or null
+     * @param digest digests already computed for the file, or null to compute them here
+     * @return a JSONObject that represents a File
+     */
+    private JSONObject createMediaFile(Uri data, Request req, JSONObject digest) {
         File fp = webView.getResourceApi().mapUriToFile(data);
 
         JSONObject obj = new JSONObject();
@@ -693,6 +2108,20 @@ public class Capture extends CordovaPlugin {
 
             obj.put("lastModifiedDate", fp.lastModified());
             obj.put("size", fp.length());
+
+            if (digest != null) {
+                obj.put("digest", digest);
+            } else if (req != null && req.digests.length > 0) {
+                obj.put("digest", createDigestObject(fp, req.digests));
+            }
+
+            if (req != null && req.waveform > 0 && req.waveform <= AudioWaveform.MAX_BUCKETS
+                    && obj.optString("type").startsWith("audio/")) {
+                JSONObject waveform = getWaveform(fp, req.waveform);
+                if (waveform != null) {
+                    obj.put("waveform", waveform);
+                }
+            }
         } catch (JSONException e) {
             // this will never happen
             e.printStackTrace();
@@ -700,6 +2129,46 @@ public class Capture extends CordovaPlugin {
         return obj;
     }
 
+    /**
+     * Digests the captured file in one pass over memory-mapped windows, so the app does not have
+     * to read it back through the File plugin to hash it.
+     *
+     * @param fp         the captured file
+     * @param algorithms the digest names requested in the capture options
+     * @return a JSONObject mapping each digest name to its lowercase hex value
+     */
+    private JSONObject createDigestObject(File fp, String[] algorithms) throws JSONException {
+        JSONObject obj = new JSONObject();
+        MediaDigest[] digests = MediaDigest.create(algorithms);
+        try {
+            MediaDigest.digestFile(fp, digests);
+            for (MediaDigest digest : digests) {
+                obj.put(digest.getName(), digest.toHex());
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error computing digest for " + fp, e);
+        }
+        return obj;
+    }
+
+    /**
+     * Adds the perceptual hash of an image to its MediaFile and flags it when an image captured
+     * earlier in this session is within the request's nearDuplicateDistance.
+     */
+    private void putPerceptualHash(JSONObject mediaFile, long hash, Request req) {
+        try {
+            mediaFile.put("perceptualHash", PerceptualHash.toHex(hash));
+            PerceptualHash.Match match = perceptualIndex.findAndAdd(hash, mediaFile.getString("fullPath"), req.nearDuplicateDistance);
+            if (match != null) {
+                mediaFile.put("nearDuplicateOf", match.value);
+                mediaFile.put("nearDuplicateDistance", match.distance);
+            }
+        } catch (JSONException e) {
+            // this will never happen
+            e.printStackTrace();
+        }
+    }
+
     private JSONObject createErrorObject(int code, String message) {
         JSONObject obj = new JSONObject();
         try {
@@ -789,9 +2258,18 @@ public class Capture extends CordovaPlugin {
     }
 
     public Bundle onSaveInstanceState() {
+        pendingRequests.syncJournal();
         return pendingRequests.toBundle();
     }
 
+    @Override
+    public void onDestroy() {
+        stopAudioCapture();
+        chunkReader.close();
+        pendingRequests.closeJournal();
+        catalog.close();
+    }
+
     public void onRestoreStateForActivityResult(Bundle state, CallbackContext callbackContext) {
         pendingRequests.setLastSavedState(state, callbackContext);
     }
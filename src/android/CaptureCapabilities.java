@@ -0,0 +1,176 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.provider.MediaStore;
+
+import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.LOG;
+import org.apache.cordova.PermissionHelper;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What the app and device can capture: whether CAMERA is declared in the manifest, which capture
+ * apps are installed and which native recording formats are available. Each fact is probed on
+ * first use rather than at startup and then reused. The capture path only needs the manifest;
+ * capture apps and encoders are only probed when the app asks for the capabilities. None of these
+ * facts depend on permission grants. Granted permissions are remembered as well; revoking a
+ * permission kills the process, so a grant seen once stays valid for the lifetime of this object.
+ */
+public class CaptureCapabilities {
+    private static final String LOG_TAG = "CaptureCapabilities";
+
+    private static final String[] STORAGE_PERMISSIONS = {
+            Manifest.permission.READ_EXTERNAL_STORAGE,
+            Manifest.permission.WRITE_EXTERNAL_STORAGE
+    };
+    private static final String[] STORAGE_AND_CAMERA_PERMISSIONS = {
+            Manifest.permission.READ_EXTERNAL_STORAGE,
+            Manifest.permission.WRITE_EXTERNAL_STORAGE,
+            Manifest.permission.CAMERA
+    };
+
+    private final Context context;
+
+    // CB-10670: CAMERA only has to be requested when some plugin declares it in the manifest;
+    // null until the manifest has been read
+    private Boolean cameraPermissionDeclared;
+
+    // Capture apps and encoders, null until toJSON() is first called
+    private JSONObject snapshot;
+
+    private final Set<String> granted = new HashSet<String>();
+
+    public CaptureCapabilities(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Reads the manifest once, without probing capture apps or encoders.
+     */
+    public synchronized boolean isCameraPermissionDeclared() {
+        if (cameraPermissionDeclared == null) {
+            boolean declared = false;
+            try {
+                PackageManager packageManager = context.getPackageManager();
+                String[] requested = packageManager.getPackageInfo(context.getPackageName(), PackageManager.GET_PERMISSIONS).requestedPermissions;
+                declared = requested != null && Arrays.asList(requested).contains(Manifest.permission.CAMERA);
+            } catch (PackageManager.NameNotFoundException e) {
+                // We are requesting the info for our package, so this should never be caught
+                LOG.e(LOG_TAG, "Failed checking for CAMERA permission in manifest", e);
+            }
+            cameraPermissionDeclared = declared;
+        }
+        return cameraPermissionDeclared;
+    }
+
+    private static boolean hasActivity(PackageManager packageManager, String action) {
+        return new Intent(action).resolveActivity(packageManager) != null;
+    }
+
+    public String[] getStoragePermissions() {
+        return STORAGE_PERMISSIONS;
+    }
+
+    public String[] getCameraPermissions() {
+        return isCameraPermissionDeclared() ? STORAGE_AND_CAMERA_PERMISSIONS : STORAGE_PERMISSIONS;
+    }
+
+    /**
+     * Checks a permission, asking the system only until it has been seen granted.
+     */
+    public synchronized boolean hasPermission(CordovaPlugin plugin, String permission) {
+        if (granted.contains(permission)) {
+            return true;
+        }
+        if (PermissionHelper.hasPermission(plugin, permission)) {
+            granted.add(permission);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Probes the capture apps and the AAC encoder the first time it is called.
+     *
+     * @return the capabilities with supportedAudioModes, supportedImageModes and
+     *         supportedVideoModes as arrays of ConfigurationData
+     */
+    public synchronized JSONObject toJSON() throws JSONException {
+        if (snapshot != null) {
+            return snapshot;
+        }
+        PackageManager packageManager = context.getPackageManager();
+        boolean audioRecorderApp = hasActivity(packageManager, MediaStore.Audio.Media.RECORD_SOUND_ACTION);
+        boolean imageCaptureApp = hasActivity(packageManager, MediaStore.ACTION_IMAGE_CAPTURE);
+        boolean videoCaptureApp = hasActivity(packageManager, MediaStore.ACTION_VIDEO_CAPTURE);
+        boolean aacEncoder;
+        try {
+            aacEncoder = AdtsWriter.isSupported(44100, 1);
+        } catch (RuntimeException e) {
+            aacEncoder = false;
+        }
+
+        JSONArray audio = new JSONArray();
+        // The in-process recorder needs no app
+        audio.put(createMode("audio/wav"));
+        audio.put(createMode("audio/flac"));
+        if (aacEncoder) {
+            audio.put(createMode("audio/aac"));
+        }
+        JSONArray image = new JSONArray();
+        if (imageCaptureApp) {
+            image.put(createMode("image/jpeg"));
+        }
+        JSONArray video = new JSONArray();
+        if (videoCaptureApp) {
+            video.put(createMode("video/mp4"));
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("cameraPermissionDeclared", isCameraPermissionDeclared());
+        obj.put("audioRecorderApp", audioRecorderApp);
+        obj.put("imageCaptureApp", imageCaptureApp);
+        obj.put("videoCaptureApp", videoCaptureApp);
+        obj.put("aacEncoder", aacEncoder);
+        obj.put("supportedAudioModes", audio);
+        obj.put("supportedImageModes", image);
+        obj.put("supportedVideoModes", video);
+        snapshot = obj;
+        return obj;
+    }
+
+    private static JSONObject createMode(String type) throws JSONException {
+        JSONObject mode = new JSONObject();
+        mode.put("type", type);
+        mode.put("height", 0);
+        mode.put("width", 0);
+        return mode;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import org.apache.cordova.LOG;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directory for the files the plugin produces in private storage. Files are tracked in an index
+ * kept in memory and persisted next to them, so that the store never needs to list the directory.
+ *
+ * Each file is in one of three states, which the index records so it survives process death:
+ * pending while the camera or the plugin is still writing it, kept once it has been returned to
+ * the app, or cache for data the plugin can derive again. Only cache files count against the
+ * quota and only they are evicted, least recently used first. Kept files are deleted when the app
+ * releases them, so a MediaFile the app holds never disappears behind its back. Pending files a
+ * previous process left behind are deleted by reclaimPending() unless a request can still finish
+ * them.
+ *
+ * The index is an append-only list of changes, rewritten once it holds more superseded lines
+ * than live ones.
+ */
+public class CaptureStore {
+    private static final String LOG_TAG = "CaptureStore";
+
+    private static final String INDEX_FILE = ".capture_index";
+
+    private static final char PENDING = 'p';
+    private static final char KEPT = 'k';
+    private static final char CACHE = 'c';
+    private static final char REMOVED = 'x';
+
+    // Accesses closer together than this are only recorded in memory
+    private static final long TOUCH_PERSIST_MS = 60 * 1000;
+    private static final int COMPACT_MIN_LINES = 64;
+
+    // Pending files created before this class was loaded belong to an earlier process
+    private static final long PROCESS_START = System.currentTimeMillis();
+
+    private final File directory;
+    private final long quotaBytes;
+    private final String[] cacheSuffixes;
+
+    // Iteration order is least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long cacheBytes;
+    private int indexLines;
+    private boolean loaded;
+
+    /**
+     * @param directory     The directory managed by this store. It should not be shared with
+     *                      other plugins, since untracked files there may be deleted.
+     * @param quotaBytes    The maximum number of bytes of cache files kept before eviction starts
+     * @param cacheSuffixes The name suffixes of cache files, used to tell them apart from
+     *                      captures when the index has to be rebuilt from the directory
+     */
+    public CaptureStore(File directory, long quotaBytes, String... cacheSuffixes) {
+        this.directory = directory;
+        this.quotaBytes = quotaBytes;
+        this.cacheSuffixes = cacheSuffixes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Creates a new empty file in the store. The file stays pending until commit(), commitCache()
+     * or remove() is called for it. Pending files are never evicted; after a restart only
+     * reclaimPending() deletes them.
+     *
+     * @param extension The file extension including the leading dot
+     * @return          The newly created file
+     * @throws IOException
+     */
+    public synchronized File newFile(String extension) throws IOException {
+        load();
+        directory.mkdirs();
+
+        File file = new File(directory, "capture_" + System.currentTimeMillis() + extension);
+        for (int i = 1; !file.createNewFile(); i++) {
+            file = new File(directory, "capture_" + System.currentTimeMillis() + "_" + i + extension);
+        }
+
+        put(file.getName(), new Entry(0, System.currentTimeMillis(), PENDING));
+        return file;
+    }
+
+    /**
+     * Records the final size of a file that is returned to the app. It is kept until remove() is
+     * called for it.
+     *
+     * @param file  A file previously returned by newFile() or moved into the store directory
+     */
+    public synchronized void commit(File file) {
+        commit(file, KEPT);
+    }
+
+    /**
+     * Records the final size of a file holding derived data, which may be evicted once cache files
+     * exceed the quota.
+     *
+     * @param file  A file in the store directory
+     */
+    public synchronized void commitCache(File file) {
+        commit(file, CACHE);
+        evict();
+    }
+
+    /**
+     * Marks a file as recently used so it is evicted last.
+     */
+    public synchronized void touch(File file) {
+        load();
+        if (!directory.equals(file.getParentFile())) {
+            return;
+        }
+        Entry entry = entries.get(file.getName());
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+            boolean persist = now - entry.lastAccess >= TOUCH_PERSIST_MS;
+            entry.lastAccess = now;
+            if (persist) {
+                append(file.getName(), entry);
+            }
+        }
+    }
+
+    /**
+     * Deletes a file and drops it from the index.
+     */
+    public synchronized void remove(File file) {
+        load();
+        String name = file.getName();
+        Entry entry = entries.remove(name);
+        if (entry != null && entry.state == CACHE) {
+            cacheBytes -= entry.size;
+        }
+        file.delete();
+        if (entry != null) {
+            append(name, new Entry(0, 0, REMOVED));
+        }
+    }
+
+    /**
+     * Deletes the pending files left by earlier processes, such as the unused twin of a private
+     * image or video capture or the output of post-processing that was killed, except those a
+     * journaled request still refers to. Call it once, before recovered requests are finished.
+     *
+     * @param referenced    The names of files that journaled requests may still return
+     */
+    public synchronized void reclaimPending(Collection<String> referenced) {
+        load();
+        List<String> orphans = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.state == PENDING && entry.lastAccess < PROCESS_START && !referenced.contains(e.getKey())) {
+                orphans.add(e.getKey());
+            }
+        }
+        for (String name : orphans) {
+            LOG.d(LOG_TAG, "Reclaiming abandoned file " + name);
+            remove(new File(directory, name));
+        }
+    }
+
+    public synchronized boolean contains(File file) {
+        load();
+        return directory.equals(file.getParentFile()) && entries.containsKey(file.getName());
+    }
+
+    private void commit(File file, char state) {
+        load();
+        String name = file.getName();
+        if (file.exists()) {
+            put(name, new Entry(file.length(), System.currentTimeMillis(), state));
+        } else if (entries.containsKey(name)) {
+            remove(file);
+        }
+    }
+
+    private void put(String name, Entry entry) {
+        Entry previous = entries.remove(name);
+        if (previous != null && previous.state == CACHE) {
+            cacheBytes -= previous.size;
+        }
+        entries.put(name, entry);
+        if (entry.state == CACHE) {
+            cacheBytes += entry.size;
+        }
+        append(name, entry);
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (cacheBytes > quotaBytes && it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().state != CACHE) {
+                continue;
+            }
+
+            File file = new File(directory, e.getKey());
+            if (!file.delete() && file.exists()) {
+                LOG.w(LOG_TAG, "Unable to evict " + file);
+                continue;
+            }
+            cacheBytes -= e.getValue().size;
+            it.remove();
+            append(e.getKey(), new Entry(0, 0, REMOVED));
+        }
+    }
+
+    /**
+     * Reads the index the first time the store is used. The directory is only listed when the
+     * index is missing or unreadable.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        Map<String, Entry> restored = new LinkedHashMap<String, Entry>();
+        File index = new File(directory, INDEX_FILE);
+        if (index.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    indexLines++;
+                    String[] fields = line.split("\t");
+                    if (fields.length < 3) {
+                        continue;
+                    }
+                    // Indexes written before states were recorded only hold kept and pending files
+                    char state = fields.length > 3 && fields[3].length() == 1 ? fields[3].charAt(0) : KEPT;
+                    if (state == REMOVED) {
+                        restored.remove(fields[0]);
+                    } else {
+                        restored.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), state));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                LOG.w(LOG_TAG, "Rebuilding unreadable capture index", e);
+                restored.clear();
+                rebuild(restored);
+                indexLines = Integer.MAX_VALUE;
+            }
+        } else {
+            rebuild(restored);
+            indexLines = Integer.MAX_VALUE;
+        }
+
+        List<Map.Entry<String, Entry>> sorted = new ArrayList<Map.Entry<String, Entry>>(restored.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b) {
+                return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+            }
+        });
+
+        cacheBytes = 0;
+        for (Map.Entry<String, Entry> e : sorted) {
+            entries.put(e.getKey(), e.getValue());
+            if (e.getValue().state == CACHE) {
+                cacheBytes += e.getValue().size;
+            }
+        }
+        compactIfNeeded();
+        // The quota may have been lowered since the cache was written
+        evict();
+    }
+
+    /**
+     * Recovers the index from the directory listing. Files named like cache files are cache
+     * again; files of unknown origin are kept, since they may be captures the app still refers to.
+     */
+    private void rebuild(Map<String, Entry> restored) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && !file.getName().startsWith(".")) {
+                char state = isCacheName(file.getName()) ? CACHE : KEPT;
+                restored.put(file.getName(), new Entry(file.length(), file.lastModified(), state));
+            }
+        }
+    }
+
+    private boolean isCacheName(String name) {
+        for (String suffix : cacheSuffixes) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void append(String name, Entry entry) {
+        if (compactIfNeeded()) {
+            return;
+        }
+        directory.mkdirs();
+        try (Writer writer = new FileWriter(new File(directory, INDEX_FILE), true)) {
+            writer.write(format(name, entry));
+            indexLines++;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error appending to capture index", e);
+        }
+    }
+
+    /**
+     * Rewrites the index with one line per file once superseded lines dominate it.
+     *
+     * @return  true if the index was rewritten, which records the current state of every file
+     */
+    private boolean compactIfNeeded() {
+        if (indexLines <= 2 * entries.size() + COMPACT_MIN_LINES) {
+            return false;
+        }
+        directory.mkdirs();
+        File index = new File(directory, INDEX_FILE);
+        File tmp = new File(directory, INDEX_FILE + ".tmp");
+        try (Writer writer = new FileWriter(tmp)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                writer.write(format(e.getKey(), e.getValue()));
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error saving capture index", e);
+            return false;
+        }
+        if (!tmp.renameTo(index)) {
+            LOG.e(LOG_TAG, "Error replacing capture index");
+            return false;
+        }
+        indexLines = entries.size();
+        return true;
+    }
+
+    private static String format(String name, Entry entry) {
+        return name + "\t" + entry.size + "\t" + entry.lastAccess + "\t" + entry.state + "\n";
+    }
+
+    private static class Entry {
+        long size;
+        long lastAccess;
+        final char state;
+
+        Entry(long size, long lastAccess, char state) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.state = state;
+        }
+    }
+}
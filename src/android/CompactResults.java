@@ -0,0 +1,133 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Columnar encoding of a batch of MediaFile results, decoded by helpers.js. A JSONArray of
+ * MediaFile objects repeats every key, the directory of every path and every MIME type; here each
+ * property is one array, and directories and MIME types are indices into a shared string table.
+ * Properties only some files have, such as digest or waveform, are columns padded with nulls.
+ *
+ * Paths and URLs that end with the file name are stored as their prefix up to and including the
+ * last slash; anything else is stored whole. A table entry therefore ends with a slash exactly
+ * when the name has to be appended to it.
+ */
+public class CompactResults {
+    public static final String FORMAT = "columns";
+
+    /**
+     * @param mediaFiles    MediaFile objects as built by Capture.createMediaFile
+     * @return              The columnar form of the files, in the same order
+     */
+    public static JSONObject encode(JSONArray mediaFiles) throws JSONException {
+        int count = mediaFiles.length();
+        Map<String, Integer> indices = new HashMap<String, Integer>();
+        JSONArray strings = new JSONArray();
+        JSONArray names = new JSONArray();
+        JSONArray fullPaths = new JSONArray();
+        JSONArray localURLs = new JSONArray();
+        JSONArray types = new JSONArray();
+        JSONArray sizes = new JSONArray();
+        JSONArray dates = new JSONArray();
+        Map<String, JSONArray> extra = new LinkedHashMap<String, JSONArray>();
+
+        for (int i = 0; i < count; i++) {
+            JSONObject mediaFile = mediaFiles.getJSONObject(i);
+            String name = mediaFile.optString("name");
+            names.put(name);
+            fullPaths.put(intern(prefix(mediaFile.optString("fullPath"), name), indices, strings));
+            localURLs.put(mediaFile.has("localURL") ? intern(prefix(mediaFile.getString("localURL"), name), indices, strings) : -1);
+            types.put(intern(mediaFile.optString("type"), indices, strings));
+            sizes.put(mediaFile.optLong("size"));
+            dates.put(mediaFile.optLong("lastModifiedDate"));
+
+            Iterator<String> keys = mediaFile.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (isCoreKey(key)) {
+                    continue;
+                }
+                JSONArray column = extra.get(key);
+                if (column == null) {
+                    column = new JSONArray();
+                    extra.put(key, column);
+                }
+                pad(column, i);
+                column.put(mediaFile.get(key));
+            }
+        }
+
+        JSONObject columns = new JSONObject();
+        for (Map.Entry<String, JSONArray> e : extra.entrySet()) {
+            pad(e.getValue(), count);
+            columns.put(e.getKey(), e.getValue());
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("format", FORMAT);
+        obj.put("length", count);
+        obj.put("strings", strings);
+        obj.put("name", names);
+        obj.put("fullPath", fullPaths);
+        obj.put("localURL", localURLs);
+        obj.put("type", types);
+        obj.put("size", sizes);
+        obj.put("lastModifiedDate", dates);
+        obj.put("columns", columns);
+        return obj;
+    }
+
+    private static boolean isCoreKey(String key) {
+        return key.equals("name") || key.equals("fullPath") || key.equals("localURL") || key.equals("type")
+                || key.equals("size") || key.equals("lastModifiedDate");
+    }
+
+    private static String prefix(String url, String name) {
+        int start = url.length() - name.length();
+        if (name.length() > 0 && start > 0 && url.charAt(start - 1) == '/' && url.endsWith(name)) {
+            return url.substring(0, start);
+        }
+        return url;
+    }
+
+    private static int intern(String value, Map<String, Integer> indices, JSONArray strings) {
+        Integer index = indices.get(value);
+        if (index == null) {
+            index = strings.length();
+            indices.put(value, index);
+            strings.put(value);
+        }
+        return index;
+    }
+
+    private static void pad(JSONArray column, int length) {
+        while (column.length() < length) {
+            column.put(JSONObject.NULL);
+        }
+    }
+}
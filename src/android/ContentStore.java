@@ -0,0 +1,175 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import org.apache.cordova.LOG;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed layer over a CaptureStore. Finished captures are renamed to a path derived
+ * from their SHA-256 digest, so a capture whose content is already stored collapses into the
+ * existing file instead of taking space a second time. Each stored file carries a reference count;
+ * the file is only deleted once every capture that produced it has been released. Content-addressed
+ * files are committed as kept files, which the CaptureStore quota never evicts, so release() is
+ * the only way their count drops.
+ */
+public class ContentStore {
+    private static final String LOG_TAG = "ContentStore";
+
+    private static final String REFS_FILE = ".content_refs";
+
+    private final CaptureStore store;
+    private final Map<String, Integer> refs = new HashMap<String, Integer>();
+    private boolean loaded;
+
+    public ContentStore(CaptureStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Moves a finished capture to its content address. If the file at that address is verified to
+     * hold the same content the capture is deleted and the existing file gains a reference. A file
+     * that no longer matches its address is never replaced, since earlier captures may still point
+     * to it; the capture then keeps its own name.
+     *
+     * @param file      A file in the CaptureStore directory
+     * @param sha256    The hex SHA-256 digest of the file
+     * @return          The content-addressed file now holding the capture
+     */
+    public synchronized File add(File file, String sha256) {
+        load();
+        File target = new File(store.getDirectory(), sha256 + getExtension(file));
+        String name = target.getName();
+        Integer count = refs.get(name);
+
+        if (target.exists()) {
+            if (!holds(target, file.length(), sha256)) {
+                LOG.w(LOG_TAG, target + " does not match its content address, keeping " + file);
+                store.commit(file);
+                return file;
+            }
+            store.remove(file);
+            store.touch(target);
+            refs.put(name, count == null ? 2 : count + 1);
+        } else if (file.renameTo(target)) {
+            store.commit(file);
+            store.commit(target);
+            refs.put(name, count == null ? 1 : count + 1);
+        } else {
+            LOG.w(LOG_TAG, "Unable to move " + file + " to its content address");
+            store.commit(file);
+            return file;
+        }
+
+        save();
+        return target;
+    }
+
+    /**
+     * Reads a stored file back to check that it still holds the content its name promises.
+     */
+    private static boolean holds(File target, long length, String sha256) {
+        if (target.length() != length) {
+            return false;
+        }
+        MediaDigest digest = MediaDigest.create(MediaDigest.SHA256);
+        try {
+            MediaDigest.digestFile(target, digest);
+        } catch (IOException e) {
+            LOG.w(LOG_TAG, "Unable to verify " + target, e);
+            return false;
+        }
+        return digest.toHex().equals(sha256);
+    }
+
+    /**
+     * Drops one reference to the file and deletes it when no references remain.
+     *
+     * @return  true if the file was deleted
+     */
+    public synchronized boolean release(File file) {
+        load();
+        String name = file.getName();
+        Integer count = refs.get(name);
+        if (count != null && count > 1) {
+            refs.put(name, count - 1);
+            save();
+            return false;
+        }
+
+        refs.remove(name);
+        store.remove(file);
+        save();
+        return true;
+    }
+
+    private static String getExtension(File file) {
+        String name = file.getName();
+        int lastDot = name.lastIndexOf('.');
+        return lastDot == -1 ? "" : name.substring(lastDot);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        File index = new File(store.getDirectory(), REFS_FILE);
+        if (!index.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                // Files deleted outside the plugin, such as by clearing app data, lose their references
+                if (fields.length == 2 && new File(store.getDirectory(), fields[0]).exists()) {
+                    refs.put(fields[0], Integer.parseInt(fields[1]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOG.e(LOG_TAG, "Error reading content references", e);
+        }
+    }
+
+    private void save() {
+        File index = new File(store.getDirectory(), REFS_FILE);
+        File tmp = new File(store.getDirectory(), REFS_FILE + ".tmp");
+        try (Writer writer = new FileWriter(tmp)) {
+            for (Map.Entry<String, Integer> e : refs.entrySet()) {
+                writer.write(e.getKey() + "\t" + e.getValue() + "\n");
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error saving content references", e);
+            return;
+        }
+        if (!tmp.renameTo(index)) {
+            LOG.e(LOG_TAG, "Error replacing content references");
+        }
+    }
+}
@@ -38,6 +38,10 @@ public class FileHelper {
         if (extension.equals("3ga")) {
             return "audio/3gpp";
         }
+        // Not in the MimeTypeMap of older releases
+        if (extension.equals("flac")) {
+            return "audio/flac";
+        }
         return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
     }
     
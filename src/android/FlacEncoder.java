@@ -0,0 +1,703 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lossless FLAC encoder for 16 bit PCM WAV files. Each block of samples is encoded on its own with
+ * the better of a fixed polynomial predictor (orders 0 to 4) and a quantized LPC predictor,
+ * followed by partitioned Rice coding of the residual. Stereo blocks pick the cheapest of the
+ * independent, left/side, right/side and mid/side channel decorrelations.
+ *
+ * Frames do not depend on each other, so they are encoded in parallel on all cores while the
+ * calling thread reads the input sequentially and writes finished frames in order.
+ */
+public class FlacEncoder {
+
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int LPC_PRECISION = 12;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int STREAMINFO_OFFSET = 8;
+    private static final int STREAMINFO_LENGTH = 34;
+
+    private static final int CHANNELS_INDEPENDENT = 0;
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_RIGHT_SIDE = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    /**
+     * Encodes a WAV file.
+     *
+     * @param in    A 16 bit PCM WAV file with 1 to 8 channels
+     * @param out   The FLAC file to write
+     */
+    public static void encode(File in, File out) throws IOException {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel input = new FileInputStream(in).getChannel();
+             FileChannel output = new FileOutputStream(out).getChannel()) {
+            WavFile wav = WavFile.read(input);
+            if (wav.channels > 8) {
+                throw new IOException("FLAC supports at most 8 channels");
+            }
+            new FlacEncoder(wav).encode(input, output, executor, threads * 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private final WavFile wav;
+    private final MessageDigest md5;
+    private int minFrameSize = Integer.MAX_VALUE;
+    private int maxFrameSize;
+
+    private FlacEncoder(WavFile wav) {
+        this.wav = wav;
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release provides MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void encode(FileChannel input, FileChannel output, ExecutorService executor, int inFlight) throws IOException {
+        writeFully(output, ByteBuffer.wrap(streamHeader(new byte[16])), 0);
+        long position = STREAMINFO_OFFSET + STREAMINFO_LENGTH;
+
+        final int channels = wav.channels;
+        long frames = wav.getFrameCount();
+        Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        short[] interleaved = new short[BLOCK_SIZE * channels];
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * channels * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+        int frameNumber = 0;
+        for (long frame = 0; frame < frames; frame += BLOCK_SIZE, frameNumber++) {
+            final int count = (int) Math.min(BLOCK_SIZE, frames - frame);
+            block.clear();
+            block.limit(count * channels * 2);
+            while (block.hasRemaining()) {
+                if (input.read(block, wav.dataOffset + frame * channels * 2 + block.position()) < 0) {
+                    throw new IOException("Truncated WAV data");
+                }
+            }
+            md5.update(block.array(), 0, block.limit());
+            block.flip();
+            block.asShortBuffer().get(interleaved, 0, count * channels);
+
+            final int[][] samples = new int[channels][count];
+            for (int i = 0, k = 0; i < count; i++) {
+                for (int c = 0; c < channels; c++) {
+                    samples[c][i] = interleaved[k++];
+                }
+            }
+            final int number = frameNumber;
+            pending.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return encodeFrame(samples, count, number);
+                }
+            }));
+            if (pending.size() >= inFlight) {
+                position += writeFrame(output, pending.poll(), position);
+            }
+        }
+        while (!pending.isEmpty()) {
+            position += writeFrame(output, pending.poll(), position);
+        }
+        output.truncate(position);
+        writeFully(output, ByteBuffer.wrap(streamHeader(md5.digest())), 0);
+    }
+
+    private int writeFrame(FileChannel output, Future<byte[]> future, long position) throws IOException {
+        byte[] frame;
+        try {
+            frame = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("FLAC encoding interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("FLAC encoding failed", e.getCause());
+        }
+        minFrameSize = Math.min(minFrameSize, frame.length);
+        maxFrameSize = Math.max(maxFrameSize, frame.length);
+        writeFully(output, ByteBuffer.wrap(frame), position);
+        return frame.length;
+    }
+
+    /**
+     * @return  The "fLaC" marker and STREAMINFO block. Frame sizes and the MD5 are only known at
+     *          the end, so this is written again once every frame is out.
+     */
+    private byte[] streamHeader(byte[] digest) {
+        BitWriter out = new BitWriter(STREAMINFO_OFFSET + STREAMINFO_LENGTH);
+        out.write(0x664C6143, 32);                      // "fLaC"
+        out.write(1, 1);                                // last metadata block
+        out.write(0, 7);                                // STREAMINFO
+        out.write(STREAMINFO_LENGTH, 24);
+        long frames = wav.getFrameCount();
+        int blockSize = (int) Math.max(16, Math.min(BLOCK_SIZE, frames));
+        out.write(blockSize, 16);
+        out.write(blockSize, 16);
+        out.write(maxFrameSize == 0 ? 0 : minFrameSize, 24);
+        out.write(maxFrameSize, 24);
+        out.write(wav.sampleRate, 20);
+        out.write(wav.channels - 1, 3);
+        out.write(15, 5);                               // 16 bits per sample
+        out.write(frames >>> 32, 4);
+        out.write(frames, 32);
+        for (byte b : digest) {
+            out.write(b & 0xFF, 8);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeFully(FileChannel output, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += output.write(buffer, position);
+        }
+    }
+
+    /**
+     * Encodes one frame: header, one subframe per channel and the CRC-16 footer.
+     */
+    byte[] encodeFrame(int[][] samples, int count, int frameNumber) {
+        int assignment = CHANNELS_INDEPENDENT;
+        int[][] coded = samples;
+        if (samples.length == 2) {
+            int[] left = samples[0];
+            int[] right = samples[1];
+            int[] mid = new int[count];
+            int[] side = new int[count];
+            for (int i = 0; i < count; i++) {
+                mid[i] = (left[i] + right[i]) >> 1;
+                side[i] = left[i] - right[i];
+            }
+            long l = estimate(left, count);
+            long r = estimate(right, count);
+            long m = estimate(mid, count);
+            long s = estimate(side, count);
+
+            long best = l + r;
+            if (l + s < best) {
+                best = l + s;
+                assignment = CHANNELS_LEFT_SIDE;
+                coded = new int[][]{left, side};
+            }
+            if (r + s < best) {
+                best = r + s;
+                assignment = CHANNELS_RIGHT_SIDE;
+                coded = new int[][]{side, right};
+            }
+            if (m + s < best) {
+                assignment = CHANNELS_MID_SIDE;
+                coded = new int[][]{mid, side};
+            }
+        }
+
+        BitWriter out = new BitWriter(count * samples.length * 2 + 64);
+        out.write(0xFFF8, 16);                          // sync code, fixed block size
+        int blockSizeCode = count == BLOCK_SIZE ? 12 : 7;
+        out.write(blockSizeCode, 4);
+        out.write(sampleRateCode(wav.sampleRate), 4);
+        out.write(assignment == CHANNELS_INDEPENDENT ? samples.length - 1 : assignment, 4);
+        out.write(4, 3);                                // 16 bits per sample
+        out.write(0, 1);
+        out.writeUtf8(frameNumber);
+        if (blockSizeCode == 7) {
+            out.write(count - 1, 16);
+        }
+        out.write(crc8(out.buffer(), out.length()), 8);
+
+        for (int c = 0; c < coded.length; c++) {
+            boolean side = (assignment == CHANNELS_LEFT_SIDE && c == 1)
+                    || (assignment == CHANNELS_RIGHT_SIDE && c == 0)
+                    || (assignment == CHANNELS_MID_SIDE && c == 1);
+            Subframe.encode(out, coded[c], count, side ? 17 : 16);
+        }
+        out.align();
+        out.write(crc16(out.buffer(), out.length()), 16);
+        return out.toByteArray();
+    }
+
+    /**
+     * Rough cost of a channel: the smallest sum of absolute residuals of the fixed predictors.
+     */
+    private static long estimate(int[] x, int n) {
+        long[] sums = new long[5];
+        for (int i = 4; i < n; i++) {
+            int e0 = x[i];
+            int e1 = e0 - x[i - 1];
+            int e2 = e1 - (x[i - 1] - x[i - 2]);
+            int e3 = e2 - (x[i - 1] - 2 * x[i - 2] + x[i - 3]);
+            int e4 = e3 - (x[i - 1] - 3 * x[i - 2] + 3 * x[i - 3] - x[i - 4]);
+            sums[0] += Math.abs(e0);
+            sums[1] += Math.abs(e1);
+            sums[2] += Math.abs(e2);
+            sums[3] += Math.abs(e3);
+            sums[4] += Math.abs(e4);
+        }
+        long min = sums[0];
+        for (long s : sums) {
+            min = Math.min(min, s);
+        }
+        return min;
+    }
+
+    private static int sampleRateCode(int rate) {
+        switch (rate) {
+            case 88200: return 1;
+            case 176400: return 2;
+            case 192000: return 3;
+            case 8000: return 4;
+            case 16000: return 5;
+            case 22050: return 6;
+            case 24000: return 7;
+            case 32000: return 8;
+            case 44100: return 9;
+            case 48000: return 10;
+            case 96000: return 11;
+            default: return 0;                          // taken from STREAMINFO
+        }
+    }
+
+    static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xFFFF : (crc << 1) & 0xFFFF;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * Chooses and writes the predictor and residual of one channel.
+     */
+    static class Subframe {
+        private static final int[][] FIXED = {
+                {}, {1}, {2, -1}, {3, -3, 1}, {4, -6, 4, -1}};
+
+        static void encode(BitWriter out, int[] x, int n, int bps) {
+            boolean constant = true;
+            for (int i = 1; i < n && constant; i++) {
+                constant = x[i] == x[0];
+            }
+            if (constant) {
+                out.write(0, 8);                        // CONSTANT
+                out.writeSigned(x[0], bps);
+                return;
+            }
+
+            // Fixed predictors
+            int[] residual = new int[n];
+            int bestFixedOrder = -1;
+            long bestFixedBits = Long.MAX_VALUE;
+            for (int order = 0; order <= 4 && order < n; order++) {
+                predict(x, n, FIXED[order], 0, residual);
+                long bits = (long) order * bps + Rice.cost(residual, n, order);
+                if (bits < bestFixedBits) {
+                    bestFixedBits = bits;
+                    bestFixedOrder = order;
+                }
+            }
+
+            // LPC
+            Lpc lpc = n > MAX_LPC_ORDER * 4 ? Lpc.compute(x, n, bps) : null;
+            long lpcBits = Long.MAX_VALUE;
+            if (lpc != null) {
+                if (predict(x, n, lpc.coefficients, lpc.shift, residual)) {
+                    lpcBits = (long) lpc.coefficients.length * (bps + LPC_PRECISION) + 9 + Rice.cost(residual, n, lpc.coefficients.length);
+                }
+            }
+
+            long verbatimBits = (long) n * bps;
+            if (verbatimBits <= bestFixedBits && verbatimBits <= lpcBits) {
+                out.write(2, 8);                        // VERBATIM
+                for (int i = 0; i < n; i++) {
+                    out.writeSigned(x[i], bps);
+                }
+            } else if (lpcBits < bestFixedBits) {
+                int order = lpc.coefficients.length;
+                out.write(0x40 | (order - 1) << 1, 8);  // LPC
+                for (int i = 0; i < order; i++) {
+                    out.writeSigned(x[i], bps);
+                }
+                out.write(LPC_PRECISION - 1, 4);
+                out.writeSigned(lpc.shift, 5);
+                for (int c : lpc.coefficients) {
+                    out.writeSigned(c, LPC_PRECISION);
+                }
+                Rice.write(out, residual, n, order);
+            } else {
+                out.write(0x10 | bestFixedOrder << 1, 8); // FIXED
+                for (int i = 0; i < bestFixedOrder; i++) {
+                    out.writeSigned(x[i], bps);
+                }
+                predict(x, n, FIXED[bestFixedOrder], 0, residual);
+                Rice.write(out, residual, n, bestFixedOrder);
+            }
+        }
+
+        /**
+         * Computes the residual of a linear predictor, leaving the warm-up samples untouched.
+         *
+         * @return  false if a residual does not fit the range Rice coding handles
+         */
+        static boolean predict(int[] x, int n, int[] coefficients, int shift, int[] residual) {
+            int order = coefficients.length;
+            for (int i = order; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefficients[j] * x[i - j - 1];
+                }
+                long r = x[i] - (sum >> shift);
+                if (r > (1 << 30) || r < -(1 << 30)) {
+                    return false;
+                }
+                residual[i] = (int) r;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Quantized linear prediction coefficients from the Levinson-Durbin recursion over the
+     * autocorrelation of a Welch-windowed block.
+     */
+    static class Lpc {
+        final int[] coefficients;
+        final int shift;
+
+        private Lpc(int[] coefficients, int shift) {
+            this.coefficients = coefficients;
+            this.shift = shift;
+        }
+
+        static Lpc compute(int[] x, int n, int bps) {
+            double[] windowed = new double[n];
+            double half = (n - 1) / 2.0;
+            for (int i = 0; i < n; i++) {
+                double t = (i - half) / half;
+                windowed[i] = x[i] * (1 - t * t);
+            }
+            double[] autoc = new double[MAX_LPC_ORDER + 1];
+            for (int lag = 0; lag <= MAX_LPC_ORDER; lag++) {
+                double sum = 0;
+                for (int i = lag; i < n; i++) {
+                    sum += windowed[i] * windowed[i - lag];
+                }
+                autoc[lag] = sum;
+            }
+            if (autoc[0] == 0) {
+                return null;
+            }
+
+            // Levinson-Durbin, keeping the prediction error of every order to pick the best one
+            double[][] lp = new double[MAX_LPC_ORDER][];
+            double[] errors = new double[MAX_LPC_ORDER];
+            double[] a = new double[MAX_LPC_ORDER];
+            double error = autoc[0];
+            for (int i = 0; i < MAX_LPC_ORDER; i++) {
+                double r = -autoc[i + 1];
+                for (int k = 0; k < i; k++) {
+                    r -= a[k] * autoc[i - k];
+                }
+                r /= error;
+                a[i] = r;
+                int j = 0;
+                for (; j < i / 2; j++) {
+                    double tmp = a[j];
+                    a[j] += r * a[i - 1 - j];
+                    a[i - 1 - j] += r * tmp;
+                }
+                if ((i & 1) != 0) {
+                    a[j] += a[j] * r;
+                }
+                error *= 1 - r * r;
+                lp[i] = new double[i + 1];
+                for (int k = 0; k <= i; k++) {
+                    lp[i][k] = -a[k];
+                }
+                errors[i] = error;
+                if (error <= 0) {
+                    break;
+                }
+            }
+
+            // Expected bits per order: residual entropy plus the cost of the coefficients
+            int bestOrder = 0;
+            double bestBits = Double.MAX_VALUE;
+            for (int i = 0; i < MAX_LPC_ORDER && lp[i] != null; i++) {
+                int order = i + 1;
+                double perSample = errors[i] > 0 ? Math.max(0, 0.5 * Math.log(errors[i] * 0.5 / n) / Math.log(2)) : 0;
+                double bits = perSample * (n - order) + order * (bps + LPC_PRECISION);
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestOrder = order;
+                }
+            }
+            return quantize(lp[bestOrder - 1]);
+        }
+
+        private static Lpc quantize(double[] lp) {
+            double cmax = 0;
+            for (double c : lp) {
+                cmax = Math.max(cmax, Math.abs(c));
+            }
+            if (cmax <= 0 || Double.isNaN(cmax) || Double.isInfinite(cmax)) {
+                return null;
+            }
+            int log2cmax = Math.getExponent(cmax) + 1;
+            int shift = Math.min(15, Math.max(0, LPC_PRECISION - 1 - log2cmax));
+            int qmax = (1 << (LPC_PRECISION - 1)) - 1;
+            int qmin = -(1 << (LPC_PRECISION - 1));
+
+            int[] q = new int[lp.length];
+            double error = 0;
+            for (int i = 0; i < lp.length; i++) {
+                error += lp[i] * (1 << shift);
+                long v = Math.round(error);
+                v = Math.max(qmin, Math.min(qmax, v));
+                q[i] = (int) v;
+                error -= v;
+            }
+            return new Lpc(q, shift);
+        }
+    }
+
+    /**
+     * Partitioned Rice coding of a residual, choosing the partition order and per-partition
+     * parameters that minimize the estimated size.
+     */
+    static class Rice {
+        private static final int MAX_PARAMETER = 14;
+        private static final int MAX_PARAMETER_EXTENDED = 30;
+
+        static long cost(int[] residual, int n, int predictorOrder) {
+            return plan(residual, n, predictorOrder).bits;
+        }
+
+        static void write(BitWriter out, int[] residual, int n, int predictorOrder) {
+            Plan plan = plan(residual, n, predictorOrder);
+            boolean extended = false;
+            for (int k : plan.parameters) {
+                extended |= k > MAX_PARAMETER;
+            }
+            out.write(extended ? 1 : 0, 2);
+            out.write(plan.order, 4);
+            int partitions = 1 << plan.order;
+            int partitionSize = n >> plan.order;
+            int i = predictorOrder;
+            for (int p = 0; p < partitions; p++) {
+                int k = plan.parameters[p];
+                out.write(k, extended ? 5 : 4);
+                int end = (p + 1) * partitionSize;
+                for (; i < end; i++) {
+                    out.writeRice(residual[i], k);
+                }
+            }
+        }
+
+        private static class Plan {
+            int order;
+            int[] parameters;
+            long bits = Long.MAX_VALUE;
+        }
+
+        private static Plan plan(int[] residual, int n, int predictorOrder) {
+            int maxOrder = 0;
+            while (maxOrder < MAX_PARTITION_ORDER
+                    && n % (1 << (maxOrder + 1)) == 0
+                    && (n >> (maxOrder + 1)) > predictorOrder) {
+                maxOrder++;
+            }
+
+            // Sums of zigzag-mapped residuals for the finest partitioning, merged pairwise upward
+            long[] sums = new long[1 << maxOrder];
+            int partitionSize = n >> maxOrder;
+            for (int p = 0, i = predictorOrder; p < sums.length; p++) {
+                long sum = 0;
+                for (int end = (p + 1) * partitionSize; i < end; i++) {
+                    int r = residual[i];
+                    sum += (r << 1) ^ (r >> 31);
+                }
+                sums[p] = sum;
+            }
+
+            Plan best = new Plan();
+            for (int order = maxOrder; order >= 0; order--) {
+                int partitions = 1 << order;
+                int size = n >> order;
+                int[] parameters = new int[partitions];
+                long bits = 6;
+                for (int p = 0; p < partitions; p++) {
+                    int count = p == 0 ? size - predictorOrder : size;
+                    int k = parameter(sums[p], count);
+                    parameters[p] = k;
+                    bits += 5 + (long) count * (k + 1) + (sums[p] >> k);
+                }
+                if (bits < best.bits) {
+                    best.bits = bits;
+                    best.order = order;
+                    best.parameters = parameters;
+                }
+                if (order > 0) {
+                    long[] merged = new long[partitions / 2];
+                    for (int p = 0; p < merged.length; p++) {
+                        merged[p] = sums[2 * p] + sums[2 * p + 1];
+                    }
+                    sums = merged;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * @return  The Rice parameter closest to optimal for a mean value of sum / count
+         */
+        private static int parameter(long sum, int count) {
+            if (count == 0 || sum < count) {
+                return 0;
+            }
+            int k = 63 - Long.numberOfLeadingZeros(sum / count);
+            return Math.min(k, MAX_PARAMETER_EXTENDED - 1);
+        }
+    }
+
+    /**
+     * Big-endian bit writer over a growing byte array.
+     */
+    static class BitWriter {
+        private byte[] data;
+        private int bytes;
+        private long accumulator;
+        private int bits;
+
+        BitWriter(int capacity) {
+            data = new byte[Math.max(16, capacity)];
+        }
+
+        void write(long value, int count) {
+            while (count > 0) {
+                int n = Math.min(count, 32);
+                count -= n;
+                accumulator = (accumulator << n) | ((value >>> count) & ((1L << n) - 1));
+                bits += n;
+                flushWholeBytes();
+            }
+        }
+
+        void writeSigned(int value, int count) {
+            write(value & ((1L << count) - 1), count);
+        }
+
+        void writeRice(int value, int k) {
+            int u = (value << 1) ^ (value >> 31);
+            int q = u >>> k;
+            while (q >= 32) {
+                write(0, 32);
+                q -= 32;
+            }
+            write(1, q + 1);
+            if (k > 0) {
+                write(u & ((1 << k) - 1), k);
+            }
+        }
+
+        /**
+         * Writes a frame number in the extended UTF-8 coding FLAC uses.
+         */
+        void writeUtf8(int value) {
+            if (value < 0x80) {
+                write(value, 8);
+                return;
+            }
+            int extra = value < 0x800 ? 1 : value < 0x10000 ? 2 : value < 0x200000 ? 3 : value < 0x4000000 ? 4 : 5;
+            int prefix = (0xFF00 >> (extra + 1)) & 0xFF;
+            write(prefix | (value >>> (6 * extra)), 8);
+            for (int i = extra - 1; i >= 0; i--) {
+                write(0x80 | ((value >>> (6 * i)) & 0x3F), 8);
+            }
+        }
+
+        void align() {
+            if (bits % 8 != 0) {
+                write(0, 8 - bits % 8);
+            }
+        }
+
+        /**
+         * @return  The number of complete bytes written
+         */
+        int length() {
+            return bytes;
+        }
+
+        byte[] buffer() {
+            return data;
+        }
+
+        byte[] toByteArray() {
+            align();
+            return Arrays.copyOf(data, bytes);
+        }
+
+        private void flushWholeBytes() {
+            while (bits >= 8) {
+                if (bytes == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                bits -= 8;
+                data[bytes++] = (byte) (accumulator >>> bits);
+            }
+        }
+    }
+}
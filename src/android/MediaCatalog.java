@@ -0,0 +1,560 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.net.Uri;
+
+import org.apache.cordova.LOG;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Index of every capture the plugin has returned, so apps can list past captures without
+ * scanning directories or querying MediaStore. Entries are held in memory in capture order and
+ * persisted as an append-only log framed like the RequestJournal, so listing never touches the
+ * file system or the media provider. The log is replayed on first use and rewritten once
+ * superseded records outnumber the live ones.
+ *
+ * Dimensions and duration are not part of a capture result; they are read on the executor after
+ * an entry is added, so adding never decodes media on the calling thread.
+ */
+public class MediaCatalog {
+    private static final String LOG_TAG = "MediaCatalog";
+
+    private static final int MAGIC = 0x4D434331;                // "MCC1"
+    private static final int FRAME_HEADER = 8;                  // length and CRC-32
+    private static final int MAX_RECORD = 256 * 1024;
+
+    private static final byte ADDED = 1;
+    private static final byte DESCRIBED = 2;
+    private static final byte REMOVED = 3;
+
+    // Superseded records tolerated before the log is rewritten
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    /**
+     * Reads the dimensions and duration of a cataloged file.
+     */
+    public interface Prober {
+        /**
+         * @return  The MediaFileData of the file, or null if it cannot be read
+         */
+        JSONObject probe(String fullPath, String type);
+    }
+
+    private static class Entry {
+        final long id;
+        final long captureDate;
+        final String fullPath;
+        final String localURL;
+        final String type;
+        final long size;
+        final long lastModifiedDate;
+        boolean described;
+        int width;
+        int height;
+        int duration;
+
+        Entry(long id, long captureDate, String fullPath, String localURL, String type, long size, long lastModifiedDate) {
+            this.id = id;
+            this.captureDate = captureDate;
+            this.fullPath = fullPath;
+            this.localURL = localURL;
+            this.type = type;
+            this.size = size;
+            this.lastModifiedDate = lastModifiedDate;
+        }
+
+        boolean matches(String typeFilter, long since, long until) {
+            if (captureDate < since || captureDate >= until) {
+                return false;
+            }
+            // "image" matches every image type, "image/jpeg" only itself
+            return typeFilter == null || type.equals(typeFilter)
+                    || (type.startsWith(typeFilter) && type.length() > typeFilter.length()
+                        && type.charAt(typeFilter.length()) == '/');
+        }
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("name", fullPath.substring(fullPath.lastIndexOf('/') + 1));
+            obj.put("fullPath", fullPath);
+            if (localURL.length() > 0) {
+                obj.put("localURL", localURL);
+            }
+            obj.put("type", type);
+            obj.put("lastModifiedDate", lastModifiedDate);
+            obj.put("size", size);
+            obj.put("captureDate", captureDate);
+            if (described) {
+                obj.put("width", width);
+                obj.put("height", height);
+                obj.put("duration", duration);
+            }
+            return obj;
+        }
+    }
+
+    private final File file;
+    private final Executor executor;
+    private final Prober prober;
+
+    private final TreeMap<Long, Entry> entries = new TreeMap<Long, Entry>();
+    private final Map<String, Entry> byPath = new HashMap<String, Entry>();
+    private long nextId = 1;
+    private boolean loaded;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    // Records in the log, live or superseded
+    private int records;
+    // Log size in records below which a failed compaction is not retried
+    private int postponedUntil;
+
+    /**
+     * @param file      The log file, created on first use
+     * @param executor  Runs the prober for entries added without dimensions and duration
+     * @param prober    Reads dimensions and duration, or null to leave them unknown
+     */
+    public MediaCatalog(File file, Executor executor, Prober prober) {
+        this.file = file;
+        this.executor = executor;
+        this.prober = prober;
+    }
+
+    /**
+     * Adds the MediaFile objects of a resolved capture. A file that is already cataloged, such
+     * as a deduplicated capture, moves to the end with the new capture date.
+     */
+    public synchronized void add(JSONArray mediaFiles) {
+        load();
+        long now = System.currentTimeMillis();
+        List<Entry> added = new ArrayList<Entry>();
+        for (int i = 0; i < mediaFiles.length(); i++) {
+            JSONObject mediaFile = mediaFiles.optJSONObject(i);
+            String fullPath = mediaFile != null ? mediaFile.optString("fullPath", null) : null;
+            if (fullPath == null) {
+                continue;
+            }
+            Entry entry = new Entry(nextId++, now, fullPath, mediaFile.optString("localURL", ""),
+                    mediaFile.optString("type", ""), mediaFile.optLong("size"), mediaFile.optLong("lastModifiedDate"));
+            put(entry);
+            append(ADDED, entry.id, addedPayload(entry));
+            // Encrypted captures cannot be decoded in place
+            if (!mediaFile.has("encryption")) {
+                added.add(entry);
+            }
+        }
+        describe(added);
+    }
+
+    /**
+     * @return  true if a capture with this fullPath has been returned and not removed since
+     */
+    public synchronized boolean contains(String fullPath) {
+        load();
+        return byPath.containsKey(fullPath);
+    }
+
+    public synchronized void remove(String fullPath) {
+        load();
+        Entry entry = byPath.remove(fullPath);
+        if (entry != null) {
+            entries.remove(entry.id);
+            append(REMOVED, entry.id, new byte[0]);
+        }
+    }
+
+    /**
+     * Lists cataloged captures, newest first. Listing reads only memory unless verify is set;
+     * files deleted by the plugin are dropped from the catalog as they go, but files deleted
+     * behind its back stay listed until a verified listing reaches them.
+     *
+     * @param cursor    The cursor returned with the previous page, or 0 for the first page
+     * @param limit     The maximum number of entries returned, at most MAX_LIMIT
+     * @param type      A media type such as "image/jpeg" or a top-level type such as "image",
+     *                  or null for all captures
+     * @param since     The earliest capture date included, in milliseconds
+     * @param until     The capture date at which the listing stops, exclusive
+     * @param verify    Whether to check that each listed file still exists and drop the
+     *                  entries of missing files
+     * @return          An object with the mediaFiles of the page and the cursor of the next
+     *                  page, which is null after the last page
+     */
+    public synchronized JSONObject list(long cursor, int limit, String type, long since, long until, boolean verify) throws JSONException {
+        load();
+        limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        NavigableMap<Long, Entry> older = cursor > 0 ? entries.headMap(cursor, false) : entries;
+        JSONArray mediaFiles = new JSONArray();
+        List<Entry> missing = new ArrayList<Entry>();
+        Entry last = null;
+        boolean more = false;
+        for (Entry entry : older.descendingMap().values()) {
+            if (entry.captureDate < since) {
+                // Capture dates only grow with the id, barring clock changes
+                break;
+            }
+            if (!entry.matches(type, since, until)) {
+                continue;
+            }
+            if (verify && !new File(Uri.parse(entry.fullPath).getPath()).exists()) {
+                missing.add(entry);
+                continue;
+            }
+            if (mediaFiles.length() == limit) {
+                more = true;
+                break;
+            }
+            mediaFiles.put(entry.toJSON());
+            last = entry;
+        }
+
+        for (Entry entry : missing) {
+            remove(entry.fullPath);
+        }
+
+        JSONObject page = new JSONObject();
+        page.put("mediaFiles", mediaFiles);
+        page.put("cursor", more ? last.id : JSONObject.NULL);
+        return page;
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                LOG.w(LOG_TAG, "Error syncing " + file, e);
+            }
+        }
+        closeChannel();
+        loaded = false;
+        entries.clear();
+        byPath.clear();
+        records = 0;
+        postponedUntil = 0;
+    }
+
+    private void put(Entry entry) {
+        Entry previous = byPath.put(entry.fullPath, entry);
+        if (previous != null) {
+            entries.remove(previous.id);
+        }
+        entries.put(entry.id, entry);
+    }
+
+    private void describe(final List<Entry> pending) {
+        if (prober == null || pending.isEmpty()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Entry entry : pending) {
+                    JSONObject data = prober.probe(entry.fullPath, entry.type);
+                    if (data != null) {
+                        described(entry, data.optInt("width"), data.optInt("height"), data.optInt("duration"));
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized void described(Entry entry, int width, int height, int duration) {
+        if (entries.get(entry.id) != entry) {
+            return;
+        }
+        entry.described = true;
+        entry.width = width;
+        entry.height = height;
+        entry.duration = duration;
+        append(DESCRIBED, entry.id, ByteBuffer.allocate(12).putInt(width).putInt(height).putInt(duration).array());
+    }
+
+    private void append(byte type, long id, byte[] payload) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            // Written through without forcing; a lost tail only drops the newest entries
+            ByteBuffer frame = frame(type, id, payload);
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            records++;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error writing " + file, e);
+            closeChannel();
+            return;
+        }
+        if (needsCompaction()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOG.w(LOG_TAG, "Unable to compact " + file + ", appending to the old log", e);
+            }
+        }
+    }
+
+    private boolean needsCompaction() {
+        return records > 2 * entries.size() + COMPACT_MIN_RECORDS && records > postponedUntil;
+    }
+
+    private static ByteBuffer frame(byte type, long id, byte[] payload) {
+        int length = 9 + payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + length);
+        frame.position(FRAME_HEADER);
+        frame.put(type).putLong(id).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(frame.array(), FRAME_HEADER, length);
+        frame.putInt(0, length).putInt(4, (int) crc.getValue());
+        frame.flip();
+        return frame;
+    }
+
+    private static byte[] addedPayload(Entry entry) {
+        byte[] fullPath = entry.fullPath.getBytes(StandardCharsets.UTF_8);
+        byte[] localURL = entry.localURL.getBytes(StandardCharsets.UTF_8);
+        byte[] type = entry.type.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(37 + 12 + fullPath.length + localURL.length + type.length);
+        payload.putLong(entry.captureDate).putLong(entry.size).putLong(entry.lastModifiedDate);
+        payload.put((byte) (entry.described ? 1 : 0)).putInt(entry.width).putInt(entry.height).putInt(entry.duration);
+        payload.putInt(fullPath.length).put(fullPath);
+        payload.putInt(localURL.length).put(localURL);
+        payload.putInt(type.length).put(type);
+        return payload.array();
+    }
+
+    private static String getString(ByteBuffer body) {
+        int length = body.getInt();
+        String value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return value;
+    }
+
+    /**
+     * Replays the log the first time the catalog is used and queues entries that were never
+     * described for probing.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        try {
+            file.getParentFile().mkdirs();
+            if (file.exists()) {
+                replay();
+            }
+            if (needsCompaction() || file.length() < 4) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    if (file.length() < 4) {
+                        throw e;
+                    }
+                    LOG.w(LOG_TAG, "Unable to compact " + file + ", appending to the old log", e);
+                }
+            }
+            if (channel == null) {
+                openLog();
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Unable to open " + file + ", captures will not be cataloged", e);
+            closeChannel();
+        }
+
+        List<Entry> pending = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (!entry.described && !entry.type.isEmpty()) {
+                pending.add(entry);
+            }
+        }
+        describe(pending);
+    }
+
+    /**
+     * Rebuilds the entries from the log, stopping at the first record that is incomplete or fails
+     * its checksum. The tail after that point is cut off so new records follow valid ones.
+     */
+    private void replay() throws IOException {
+        try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+            FileChannel in = log.getChannel();
+            long size = in.size();
+            ByteBuffer data = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+            while (data.hasRemaining() && in.read(data) >= 0) {
+                // The whole log is read at once; 10,000 entries take about a megabyte
+            }
+            data.flip();
+            if (data.remaining() < 4 || data.getInt() != MAGIC) {
+                LOG.w(LOG_TAG, "Discarding unrecognized catalog " + file);
+                in.truncate(0);
+                return;
+            }
+            CRC32 crc = new CRC32();
+            while (data.remaining() >= FRAME_HEADER) {
+                int length = data.getInt(data.position());
+                if (length < 9 || length > MAX_RECORD || data.remaining() < FRAME_HEADER + length) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data.array(), data.position() + FRAME_HEADER, length);
+                if ((int) crc.getValue() != data.getInt(data.position() + 4)) {
+                    break;
+                }
+                try {
+                    apply(ByteBuffer.wrap(data.array(), data.position() + FRAME_HEADER, length).slice());
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    break;
+                }
+                data.position(data.position() + FRAME_HEADER + length);
+                records++;
+            }
+            long valid = data.position();
+            if (valid < size) {
+                LOG.w(LOG_TAG, "Dropped " + (size - valid) + " bytes of incomplete records from " + file);
+                in.truncate(valid);
+            }
+        }
+    }
+
+    private void apply(ByteBuffer body) {
+        byte type = body.get();
+        long id = body.getLong();
+        nextId = Math.max(nextId, id + 1);
+        switch (type) {
+            case ADDED:
+                long captureDate = body.getLong();
+                long size = body.getLong();
+                long lastModifiedDate = body.getLong();
+                boolean described = body.get() != 0;
+                int width = body.getInt();
+                int height = body.getInt();
+                int duration = body.getInt();
+                Entry entry = new Entry(id, captureDate, getString(body), getString(body), getString(body), size, lastModifiedDate);
+                entry.described = described;
+                entry.width = width;
+                entry.height = height;
+                entry.duration = duration;
+                put(entry);
+                break;
+            case DESCRIBED:
+                Entry target = entries.get(id);
+                if (target != null && body.remaining() >= 12) {
+                    target.described = true;
+                    target.width = body.getInt();
+                    target.height = body.getInt();
+                    target.duration = body.getInt();
+                }
+                break;
+            case REMOVED:
+                Entry removed = entries.remove(id);
+                if (removed != null) {
+                    byPath.remove(removed.fullPath);
+                }
+                break;
+            default:
+                LOG.w(LOG_TAG, "Skipping unknown catalog record type " + type);
+        }
+    }
+
+    /**
+     * Writes one record per entry to a new file and moves it over the log, so a crash at any
+     * point leaves either the old or the new log intact. The old log stays open until it has
+     * been replaced, so if compaction fails appends keep going to it.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            FileChannel tmpChannel = out.getChannel();
+            tmpChannel.truncate(0);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 128);
+            bytes.write(ByteBuffer.allocate(4).putInt(MAGIC).array());
+            for (Entry entry : entries.values()) {
+                ByteBuffer frame = frame(ADDED, entry.id, addedPayload(entry));
+                bytes.write(frame.array(), 0, frame.limit());
+            }
+            ByteBuffer data = ByteBuffer.wrap(bytes.toByteArray());
+            while (data.hasRemaining()) {
+                tmpChannel.write(data);
+            }
+            tmpChannel.force(false);
+        } catch (IOException e) {
+            tmp.delete();
+            postponeCompaction();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            postponeCompaction();
+            throw new IOException("Unable to replace " + file);
+        }
+        closeChannel();
+        records = entries.size();
+        postponedUntil = 0;
+        openLog();
+    }
+
+    /**
+     * Retries a failed compaction once the log has doubled again rather than on every append.
+     */
+    private void postponeCompaction() {
+        postponedUntil = 2 * records;
+    }
+
+    private void openLog() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        channel.position(channel.size());
+    }
+
+    private void closeChannel() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.w(LOG_TAG, "Error closing " + file, e);
+            }
+        }
+        raf = null;
+        channel = null;
+    }
+}
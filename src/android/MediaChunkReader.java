@@ -0,0 +1,180 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.os.Build;
+
+import org.apache.cordova.LOG;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves byte ranges of captured files to JavaScript. A few files are kept open, each with a
+ * direct buffer holding the window read last; when a read continues where the previous one
+ * ended the window is filled ahead of the request, so sequential readers are served from memory.
+ * Files written by MediaEncryption are decrypted transparently.
+ */
+public class MediaChunkReader {
+    private static final String LOG_TAG = "MediaChunkReader";
+
+    // Largest range returned by one read
+    public static final int MAX_READ = 4 * 1024 * 1024;
+
+    private static final int READ_AHEAD = 1024 * 1024;
+    private static final int MAX_OPEN_FILES = 4;
+
+    private final Map<String, Source> sources = new LinkedHashMap<String, Source>(MAX_OPEN_FILES, 0.75f, true);
+
+    /**
+     * Reads a range of a file.
+     *
+     * @param file      The file, plain or encrypted
+     * @param offset    Position of the first byte in the plaintext
+     * @param length    Number of bytes wanted, capped at MAX_READ and the end of the file
+     * @return          The bytes read; empty at or past the end of the file
+     */
+    public synchronized byte[] read(File file, long offset, int length) throws IOException {
+        Source source = open(file);
+        long available = Math.max(0, source.length - offset);
+        byte[] out = new byte[(int) Math.min(Math.min(length, MAX_READ), available)];
+        if (out.length == 0) {
+            return out;
+        }
+
+        if (!source.covers(offset, out.length)) {
+            // Reads from the start or continuing the previous one are likely to be followed by more
+            boolean sequential = offset == 0 || offset == source.nextOffset;
+            source.fill(offset, sequential ? Math.max(out.length, READ_AHEAD) : out.length);
+        }
+        ByteBuffer window = source.window.duplicate();
+        window.position((int) (offset - source.windowOffset));
+        window.get(out);
+        source.nextOffset = offset + out.length;
+        return out;
+    }
+
+    /**
+     * Closes every open file.
+     */
+    public synchronized void close() {
+        for (Source source : sources.values()) {
+            source.close();
+        }
+        sources.clear();
+    }
+
+    private Source open(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        Source source = sources.get(key);
+        // A file rewritten since it was opened gets a fresh source
+        if (source != null && (source.lastModified != file.lastModified() || source.size != file.length())) {
+            sources.remove(key).close();
+            source = null;
+        }
+        if (source == null) {
+            source = new Source(file);
+            sources.put(key, source);
+            Iterator<Source> eldest = sources.values().iterator();
+            while (sources.size() > MAX_OPEN_FILES) {
+                eldest.next().close();
+                eldest.remove();
+            }
+        }
+        return source;
+    }
+
+    private static class Source {
+        final FileChannel channel;
+        final MediaEncryption.Reader decrypter;
+        final long lastModified;
+        final long size;
+        final long length;
+
+        ByteBuffer window = ByteBuffer.allocateDirect(0);
+        long windowOffset;
+        long nextOffset = -1;
+
+        Source(File file) throws IOException {
+            this.lastModified = file.lastModified();
+            this.size = file.length();
+            this.channel = new FileInputStream(file).getChannel();
+            try {
+                this.decrypter = MediaEncryption.Reader.isEncrypted(channel) ? openDecrypter(channel) : null;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            this.length = decrypter != null ? decrypter.getPlainLength() : channel.size();
+        }
+
+        private static MediaEncryption.Reader openDecrypter(FileChannel channel) throws IOException {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                throw new IOException("Encrypted captures require Android 6.0");
+            }
+            try {
+                String alias = MediaEncryption.Reader.readKeyAlias(channel);
+                return new MediaEncryption.Reader(channel, MediaEncryption.getMasterKey(alias));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to open encrypted capture", e);
+            }
+        }
+
+        boolean covers(long offset, int count) {
+            return offset >= windowOffset && offset + count <= windowOffset + window.limit();
+        }
+
+        /**
+         * Loads count bytes starting at offset, or fewer at the end of the file, reusing the
+         * window buffer when it is large enough.
+         */
+        void fill(long offset, int count) throws IOException {
+            count = (int) Math.min(count, length - offset);
+            if (window.capacity() < count) {
+                window = ByteBuffer.allocateDirect(count);
+            }
+            window.clear();
+            window.limit(count);
+            while (window.hasRemaining()) {
+                long position = offset + window.position();
+                int n = decrypter != null ? decrypter.read(window, position) : channel.read(window, position);
+                if (n < 0) {
+                    break;
+                }
+            }
+            window.flip();
+            windowOffset = offset;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.w(LOG_TAG, "Error closing " + channel, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Streaming content digest for captured media. Digests are fed with ByteBuffers so they can be
+ * updated from the same buffers the plugin writes, or from memory-mapped windows of a file the
+ * camera application wrote directly.
+ */
+public abstract class MediaDigest {
+
+    public static final String SHA256 = "sha256";
+    public static final String XXHASH64 = "xxhash64";
+
+    // Size of each memory-mapped window used by digestFile()
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Creates a digest for one of the supported algorithm names
+     *
+     * @param algorithm SHA256 or XXHASH64
+     * @return          A new digest in its initial state
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    public static MediaDigest create(String algorithm) {
+        if (SHA256.equals(algorithm)) {
+            return new MessageDigestAdapter(SHA256, "SHA-256");
+        } else if (XXHASH64.equals(algorithm)) {
+            return new XXHash64();
+        }
+        throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+    }
+
+    public static boolean isSupported(String algorithm) {
+        return SHA256.equals(algorithm) || XXHASH64.equals(algorithm);
+    }
+
+    /**
+     * Reads a digest option, which is either a single algorithm name or an array of them
+     *
+     * @param option    The option value passed from JavaScript, possibly null
+     * @return          The requested names, empty if the option is not set
+     * @throws JSONException if a name is not supported
+     */
+    public static String[] parseNames(Object option) throws JSONException {
+        if (option == null || option == JSONObject.NULL) {
+            return new String[0];
+        }
+
+        JSONArray names = option instanceof JSONArray ? (JSONArray) option : new JSONArray().put(option);
+        String[] digests = new String[names.length()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = names.getString(i);
+            if (!isSupported(digests[i])) {
+                throw new JSONException("Unsupported digest: " + digests[i]);
+            }
+        }
+        return digests;
+    }
+
+    public static MediaDigest[] create(String[] algorithms) {
+        MediaDigest[] digests = new MediaDigest[algorithms.length];
+        for (int i = 0; i < algorithms.length; i++) {
+            digests[i] = create(algorithms[i]);
+        }
+        return digests;
+    }
+
+    /**
+     * Feeds the whole file to every digest in a single pass over memory-mapped windows, so files
+     * written by the camera application are never copied through heap buffers.
+     */
+    public static void digestFile(File file, MediaDigest... digests) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                update(window, digests);
+            }
+        }
+    }
+
+    /**
+     * Feeds the remaining bytes of the buffer to every digest without moving its position.
+     */
+    public static void update(ByteBuffer buffer, MediaDigest... digests) {
+        for (MediaDigest digest : digests) {
+            digest.update(buffer.duplicate());
+        }
+    }
+
+    /**
+     * @return  The name used for this digest in the MediaFile JSON
+     */
+    public abstract String getName();
+
+    /**
+     * Consumes the remaining bytes of the buffer.
+     */
+    public abstract void update(ByteBuffer buffer);
+
+    /**
+     * Completes the digest.
+     *
+     * @return  The digest as a lowercase hex string
+     */
+    public abstract String toHex();
+
+    static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    private static class MessageDigestAdapter extends MediaDigest {
+        private final String name;
+        private final MessageDigest digest;
+
+        MessageDigestAdapter(String name, String algorithm) {
+            this.name = name;
+            try {
+                this.digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android release provides SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            digest.update(buffer);
+        }
+
+        @Override
+        public String toHex() {
+            return toHex(digest.digest());
+        }
+    }
+
+    /**
+     * Streaming implementation of the 64 bit xxHash with a seed of zero.
+     */
+    static class XXHash64 extends MediaDigest {
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+        private long v1 = PRIME1 + PRIME2;
+        private long v2 = PRIME2;
+        private long v3 = 0;
+        private long v4 = -PRIME1;
+        private long totalLength;
+
+        // Bytes left over from the previous update that do not fill a 32 byte stripe
+        private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+        @Override
+        public String getName() {
+            return XXHASH64;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            totalLength += in.remaining();
+
+            if (pending.position() > 0) {
+                while (pending.hasRemaining() && in.hasRemaining()) {
+                    pending.put(in.get());
+                }
+                if (pending.hasRemaining()) {
+                    return;
+                }
+                pending.flip();
+                stripe(pending);
+                pending.clear();
+            }
+
+            while (in.remaining() >= 32) {
+                stripe(in);
+            }
+            pending.put(in);
+        }
+
+        private void stripe(ByteBuffer in) {
+            v1 = round(v1, in.getLong());
+            v2 = round(v2, in.getLong());
+            v3 = round(v3, in.getLong());
+            v4 = round(v4, in.getLong());
+        }
+
+        @Override
+        public String toHex() {
+            long h;
+            if (totalLength >= 32) {
+                h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                h = mergeRound(h, v1);
+                h = mergeRound(h, v2);
+                h = mergeRound(h, v3);
+                h = mergeRound(h, v4);
+            } else {
+                h = PRIME5;
+            }
+            h += totalLength;
+
+            pending.flip();
+            while (pending.remaining() >= 8) {
+                h ^= round(0, pending.getLong());
+                h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            }
+            if (pending.remaining() >= 4) {
+                h ^= (pending.getInt() & 0xFFFFFFFFL) * PRIME1;
+                h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            }
+            while (pending.hasRemaining()) {
+                h ^= (pending.get() & 0xFF) * PRIME5;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+            }
+
+            h ^= h >>> 33;
+            h *= PRIME2;
+            h ^= h >>> 29;
+            h *= PRIME3;
+            h ^= h >>> 32;
+
+            byte[] bytes = new byte[8];
+            for (int i = 7; i >= 0; i--) {
+                bytes[i] = (byte) h;
+                h >>>= 8;
+            }
+            return toHex(bytes);
+        }
+
+        private static long round(long acc, long input) {
+            acc += input * PRIME2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * PRIME1;
+        }
+
+        private static long mergeRound(long acc, long val) {
+            acc ^= round(0, val);
+            return acc * PRIME1 + PRIME4;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chunked AES-256-GCM encryption of captured media.
+ *
+ * Every file gets its own random data key, wrapped by a master key that never leaves the Android
+ * Keystore. The plaintext is split into fixed-size chunks that are sealed independently, so a
+ * reader can decrypt any range by locating its chunks without reading the rest of the file:
+ *
+ *   header: "CMCE" | version (1) | chunk size (4) | key alias length (2) | key alias |
+ *           wrap IV length (1) | wrap IV | wrapped key length (2) | wrapped key | nonce prefix (8)
+ *   chunks: ciphertext | tag (16), every chunk but the last holding exactly chunk size bytes
+ *
+ * The nonce of chunk i is the nonce prefix followed by i as a 32 bit big-endian counter, and the
+ * last chunk is authenticated as final so truncated files are detected.
+ */
+public class MediaEncryption {
+
+    public static final String SCHEME = "cmce1";
+    public static final String ALGORITHM = "AES-256-GCM";
+    public static final String DEFAULT_KEY_ALIAS = "cordova-plugin-media-capture";
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final byte[] MAGIC = {'C', 'M', 'C', 'E'};
+    private static final byte VERSION = 1;
+    private static final String ANDROID_KEYSTORE = "AndroidKeyStore";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 8;
+    private static final int KEY_LENGTH = 32;
+
+    private static final byte[] AAD_MORE = {0};
+    private static final byte[] AAD_FINAL = {1};
+
+    /**
+     * Returns the Keystore master key with the given alias, creating it on first use.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public static SecretKey getMasterKey(String alias) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
+        keyStore.load(null);
+        KeyStore.Entry entry = keyStore.getEntry(alias, null);
+        if (entry instanceof KeyStore.SecretKeyEntry) {
+            return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+
+    /**
+     * Channel that encrypts everything written to it into the destination file. Plaintext is
+     * staged in a single chunk-sized direct buffer, so memory use does not depend on file size.
+     */
+    public static class EncryptingChannel implements WritableByteChannel {
+        private final FileChannel out;
+        private final SecretKey dataKey;
+        private final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        private final String keyAlias;
+        private final int chunkSize;
+        private final Cipher cipher;
+        private final ByteBuffer plain;
+        private final ByteBuffer sealed;
+        private int chunkIndex;
+        private boolean open = true;
+
+        /**
+         * Writes the header for a new random data key wrapped by masterKey.
+         *
+         * @param out       The destination, positioned at the start of the file
+         * @param masterKey The Keystore key used to wrap the data key
+         * @param keyAlias  The alias of masterKey, recorded in the header
+         * @param chunkSize The number of plaintext bytes sealed per chunk
+         */
+        public EncryptingChannel(FileChannel out, SecretKey masterKey, String keyAlias, int chunkSize) throws GeneralSecurityException, IOException {
+            this.out = out;
+            this.keyAlias = keyAlias;
+            this.chunkSize = chunkSize;
+
+            SecureRandom random = new SecureRandom();
+            byte[] keyBytes = new byte[KEY_LENGTH];
+            random.nextBytes(keyBytes);
+            random.nextBytes(noncePrefix);
+            this.dataKey = new SecretKeySpec(keyBytes, "AES");
+
+            Cipher wrap = Cipher.getInstance(TRANSFORMATION);
+            wrap.init(Cipher.ENCRYPT_MODE, masterKey);
+            byte[] wrapIv = wrap.getIV();
+            byte[] wrappedKey = wrap.doFinal(keyBytes);
+
+            byte[] alias = keyAlias.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1 + 4 + 2 + alias.length + 1 + wrapIv.length + 2 + wrappedKey.length + NONCE_PREFIX_LENGTH);
+            header.put(MAGIC).put(VERSION).putInt(chunkSize);
+            header.putShort((short) alias.length).put(alias);
+            header.put((byte) wrapIv.length).put(wrapIv);
+            header.putShort((short) wrappedKey.length).put(wrappedKey);
+            header.put(noncePrefix);
+            header.flip();
+            writeFully(out, header);
+
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+            this.plain = ByteBuffer.allocateDirect(chunkSize);
+            this.sealed = ByteBuffer.allocateDirect(chunkSize + TAG_LENGTH);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                // A full chunk is only sealed once more data arrives, so the last one is always final
+                if (!plain.hasRemaining()) {
+                    seal(false);
+                }
+                int n = Math.min(plain.remaining(), src.remaining());
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + n);
+                plain.put(slice);
+                src.position(src.position() + n);
+            }
+            return written;
+        }
+
+        private void seal(boolean last) throws IOException {
+            plain.flip();
+            sealed.clear();
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce(noncePrefix, chunkIndex)));
+                cipher.updateAAD(last ? AAD_FINAL : AAD_MORE);
+                cipher.doFinal(plain, sealed);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error encrypting chunk " + chunkIndex, e);
+            }
+            sealed.flip();
+            writeFully(out, sealed);
+            plain.clear();
+            chunkIndex++;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Seals the final chunk and closes the destination.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+            try {
+                seal(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        public String getKeyAlias() {
+            return keyAlias;
+        }
+
+        public byte[] getNoncePrefix() {
+            return noncePrefix.clone();
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+    }
+
+    /**
+     * Random access reader for files written by EncryptingChannel.
+     */
+    public static class Reader {
+        private final FileChannel in;
+        private final SecretKey dataKey;
+        private final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        private final String keyAlias;
+        private final int chunkSize;
+        private final long headerLength;
+        private final long plainLength;
+        private final Cipher cipher;
+        private final ByteBuffer sealed;
+        private final ByteBuffer plain;
+        private int openChunkIndex = -1;
+
+        /**
+         * @param in            The encrypted file
+         * @param masterKey     The key matching the alias returned by readKeyAlias()
+         */
+        public Reader(FileChannel in, SecretKey masterKey) throws GeneralSecurityException, IOException {
+            this.in = in;
+            ByteBuffer header = readHeader(in);
+            this.chunkSize = header.getInt();
+            byte[] alias = new byte[header.getShort() & 0xffff];
+            header.get(alias);
+            this.keyAlias = new String(alias, StandardCharsets.UTF_8);
+            byte[] wrapIv = new byte[header.get() & 0xff];
+            header.get(wrapIv);
+            byte[] wrappedKey = new byte[header.getShort() & 0xffff];
+            header.get(wrappedKey);
+            header.get(noncePrefix);
+            this.headerLength = header.position();
+
+            Cipher unwrap = Cipher.getInstance(TRANSFORMATION);
+            unwrap.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * 8, wrapIv));
+            this.dataKey = new SecretKeySpec(unwrap.doFinal(wrappedKey), "AES");
+
+            long sealedLength = in.size() - headerLength;
+            long frame = chunkSize + TAG_LENGTH;
+            long chunks = Math.max(1, (sealedLength + frame - 1) / frame);
+            this.plainLength = sealedLength - chunks * TAG_LENGTH;
+
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+            this.sealed = ByteBuffer.allocateDirect(chunkSize + TAG_LENGTH);
+            this.plain = ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        /**
+         * @return  true if the file starts with the header written by EncryptingChannel
+         */
+        public static boolean isEncrypted(FileChannel in) throws IOException {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length + 1);
+            while (magic.hasRemaining() && in.read(magic, magic.position()) > 0) {
+                // keep reading until the magic and version are in or the file ends
+            }
+            return !magic.hasRemaining()
+                    && Arrays.equals(Arrays.copyOf(magic.array(), MAGIC.length), MAGIC)
+                    && magic.get(MAGIC.length) == VERSION;
+        }
+
+        /**
+         * Reads the key alias recorded in an encrypted file's header without unwrapping its key.
+         */
+        public static String readKeyAlias(FileChannel in) throws IOException {
+            ByteBuffer header = readHeader(in);
+            header.getInt();
+            byte[] alias = new byte[header.getShort() & 0xffff];
+            header.get(alias);
+            return new String(alias, StandardCharsets.UTF_8);
+        }
+
+        private static ByteBuffer readHeader(FileChannel in) throws IOException {
+            // Large enough for any alias, wrap IV and wrapped key written by EncryptingChannel
+            ByteBuffer header = ByteBuffer.allocate(1024);
+            in.read(header, 0);
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            if (header.remaining() < MAGIC.length + 1) {
+                throw new IOException("Not an encrypted capture");
+            }
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.get() != VERSION) {
+                throw new IOException("Not an encrypted capture");
+            }
+            return header;
+        }
+
+        public long getPlainLength() {
+            return plainLength;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public String getKeyAlias() {
+            return keyAlias;
+        }
+
+        /**
+         * Decrypts plaintext starting at position into dst until dst is full or the file ends.
+         *
+         * @return  The number of bytes read, or -1 at the end of the file
+         */
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= plainLength) {
+                return -1;
+            }
+            int total = 0;
+            long chunkCount = (plainLength + chunkSize - 1) / chunkSize;
+            while (dst.hasRemaining() && position < plainLength) {
+                int index = (int) (position / chunkSize);
+                int offset = (int) (position % chunkSize);
+                ByteBuffer chunk = openChunk(index, index == chunkCount - 1).duplicate();
+                chunk.position(offset);
+                int n = Math.min(chunk.remaining(), dst.remaining());
+                chunk.limit(offset + n);
+                dst.put(chunk);
+                position += n;
+                total += n;
+            }
+            return total;
+        }
+
+        /**
+         * Decrypts a chunk into the shared plaintext buffer. The last chunk opened is kept, so
+         * sequential reads smaller than a chunk only decrypt it once.
+         */
+        private ByteBuffer openChunk(int index, boolean last) throws IOException {
+            if (index == openChunkIndex) {
+                return plain;
+            }
+            openChunkIndex = -1;
+
+            long frame = chunkSize + TAG_LENGTH;
+            sealed.clear();
+            long start = headerLength + index * frame;
+            sealed.limit((int) Math.min(frame, in.size() - start));
+            while (sealed.hasRemaining()) {
+                if (in.read(sealed, start + sealed.position()) < 0) {
+                    throw new IOException("Truncated encrypted capture");
+                }
+            }
+            sealed.flip();
+
+            plain.clear();
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce(noncePrefix, index)));
+                cipher.updateAAD(last ? AAD_FINAL : AAD_MORE);
+                cipher.doFinal(sealed, plain);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error decrypting chunk " + index, e);
+            }
+            plain.flip();
+            openChunkIndex = index;
+            return plain;
+        }
+    }
+
+    private static byte[] nonce(byte[] prefix, int index) {
+        return ByteBuffer.allocate(prefix.length + 4).put(prefix).putInt(index).array();
+    }
+
+    static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a file into fixed-size byte ranges and digests every range, and optionally the whole
+ * file, in one sequential pass. Ranges are only described, never copied, so an uploader can
+ * send them straight from the original file.
+ */
+public class MediaSegmenter {
+
+    public static final long DEFAULT_CHUNK_SIZE = 4L * 1024 * 1024;
+
+    // Smaller chunks would make the manifest, which is held in memory and cached, grow with the
+    // file faster than the upload gains from resuming at a finer grain
+    public static final long MIN_CHUNK_SIZE = 64L * 1024;
+
+    // Size of the direct buffer the file is streamed through
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Describes the chunks of a file.
+     *
+     * @param file          The file to segment
+     * @param chunkSize     The length of every chunk except the last
+     * @param algorithms    The digests to compute for each chunk
+     * @param fileDigests   Digests fed with the whole file in the same pass
+     * @return              The chunks in file order; empty for an empty file
+     */
+    public static List<Segment> segment(File file, long chunkSize, String[] algorithms, MediaDigest... fileDigests) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+
+        List<Segment> segments = new ArrayList<Segment>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long offset = 0;
+            long length = 0;
+            MediaDigest[] digests = MediaDigest.create(algorithms);
+
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    int n = (int) Math.min(buffer.remaining(), chunkSize - length);
+                    ByteBuffer part = buffer.duplicate();
+                    part.limit(part.position() + n);
+                    MediaDigest.update(part, digests);
+                    MediaDigest.update(part, fileDigests);
+                    buffer.position(buffer.position() + n);
+                    length += n;
+
+                    if (length == chunkSize) {
+                        segments.add(new Segment(segments.size(), offset, length, digests));
+                        offset += length;
+                        length = 0;
+                        digests = MediaDigest.create(algorithms);
+                    }
+                }
+                buffer.clear();
+            }
+            if (length > 0) {
+                segments.add(new Segment(segments.size(), offset, length, digests));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * A byte range of the segmented file with its digests.
+     */
+    public static class Segment {
+        public final int index;
+        public final long offset;
+        public final long length;
+        public final String[] names;
+        public final String[] digests;
+
+        Segment(int index, long offset, long length, MediaDigest[] completed) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.names = new String[completed.length];
+            this.digests = new String[completed.length];
+            for (int i = 0; i < completed.length; i++) {
+                names[i] = completed[i].getName();
+                digests[i] = completed[i].toHex();
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Minimal model of ISO base media (MP4/3GP) boxes. Top-level boxes are only located, never read,
+ * so the media payload stays on disk; the small metadata boxes under moov are parsed into a tree
+ * that can be edited and serialized again.
+ */
+class Mp4Box {
+
+    // Size of each memory-mapped window used by transfer() while digesting
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    // Boxes on the path from moov to the sample tables whose payload is a list of child boxes
+    private static final Set<String> CONTAINERS = new HashSet<String>(Arrays.asList(
+            "moov", "trak", "mdia", "minf", "stbl", "dinf", "edts", "mvex"));
+
+    final String type;
+    ByteBuffer payload;
+    final List<Mp4Box> children;
+
+    Mp4Box(String type, ByteBuffer payload) {
+        this.type = type;
+        this.payload = payload;
+        this.children = null;
+    }
+
+    Mp4Box(String type, List<Mp4Box> children) {
+        this.type = type;
+        this.payload = null;
+        this.children = children;
+    }
+
+    boolean isContainer() {
+        return children != null;
+    }
+
+    /**
+     * Parses the content of a box, recursing into known containers.
+     */
+    static Mp4Box parse(String type, ByteBuffer content) throws IOException {
+        if (!CONTAINERS.contains(type)) {
+            return new Mp4Box(type, content.slice());
+        }
+
+        List<Mp4Box> children = new ArrayList<Mp4Box>();
+        while (content.remaining() >= 8) {
+            long size = content.getInt() & 0xFFFFFFFFL;
+            String childType = readType(content);
+            int header = 8;
+            if (size == 1) {
+                size = content.getLong();
+                header = 16;
+            } else if (size == 0) {
+                size = header + content.remaining();
+            }
+            if (size < header || size - header > content.remaining()) {
+                throw new IOException("Invalid " + childType + " box in " + type);
+            }
+            ByteBuffer childContent = content.slice();
+            childContent.limit((int) (size - header));
+            content.position(content.position() + (int) (size - header));
+            children.add(parse(childType, childContent));
+        }
+        return new Mp4Box(type, children);
+    }
+
+    /**
+     * @return  The serialized size of this box including its header
+     */
+    long size() {
+        long size = 8;
+        if (children != null) {
+            for (Mp4Box child : children) {
+                size += child.size();
+            }
+        } else {
+            size += payload.remaining();
+        }
+        return size;
+    }
+
+    void write(ByteBuffer out) {
+        out.putInt((int) size());
+        out.put(type.getBytes(StandardCharsets.US_ASCII));
+        if (children != null) {
+            for (Mp4Box child : children) {
+                child.write(out);
+            }
+        } else {
+            out.put(payload.duplicate());
+        }
+    }
+
+    ByteBuffer toByteBuffer() {
+        ByteBuffer out = ByteBuffer.allocate((int) size());
+        write(out);
+        out.flip();
+        return out;
+    }
+
+    Mp4Box child(String childType) {
+        if (children != null) {
+            for (Mp4Box child : children) {
+                if (child.type.equals(childType)) {
+                    return child;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects every box of the given type below this one.
+     */
+    List<Mp4Box> findAll(String boxType) {
+        List<Mp4Box> found = new ArrayList<Mp4Box>();
+        collect(boxType, found);
+        return found;
+    }
+
+    private void collect(String boxType, List<Mp4Box> found) {
+        if (children == null) {
+            return;
+        }
+        for (Mp4Box child : children) {
+            if (child.type.equals(boxType)) {
+                found.add(child);
+            }
+            child.collect(boxType, found);
+        }
+    }
+
+    private static String readType(ByteBuffer buffer) {
+        byte[] type = new byte[4];
+        buffer.get(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Location of a top-level box in a file.
+     */
+    static class Extent {
+        final String type;
+        final long offset;
+        final long size;
+        final int headerSize;
+
+        Extent(String type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        long end() {
+            return offset + size;
+        }
+
+        boolean contains(long position) {
+            return position >= offset && position < end();
+        }
+    }
+
+    /**
+     * Lists the top-level boxes of a file by reading only their headers.
+     */
+    static List<Extent> scan(FileChannel channel) throws IOException {
+        List<Extent> extents = new ArrayList<Extent>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long fileSize = channel.size();
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            long size = header.getInt() & 0xFFFFFFFFL;
+            String type = readType(header);
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.remaining() < 8) {
+                    throw new IOException("Truncated " + type + " box header");
+                }
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                throw new IOException("Invalid top-level " + type + " box");
+            }
+            extents.add(new Extent(type, position, size, headerSize));
+            position += size;
+        }
+        return extents;
+    }
+
+    static Extent first(List<Extent> extents, String type) {
+        for (Extent extent : extents) {
+            if (extent.type.equals(type)) {
+                return extent;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads and parses a top-level box such as moov.
+     */
+    static Mp4Box read(FileChannel channel, Extent extent) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) (extent.size - extent.headerSize));
+        while (content.hasRemaining()) {
+            if (channel.read(content, extent.offset + extent.headerSize + content.position()) < 0) {
+                throw new IOException("Truncated " + extent.type + " box");
+            }
+        }
+        content.flip();
+        return parse(extent.type, content);
+    }
+
+    /**
+     * Copies a byte range of a file with FileChannel.transferTo, which lets the kernel move the
+     * media payload without staging it in the Java heap when out is a file. When digests are
+     * given the range is copied through memory-mapped windows instead, so each byte is digested
+     * as it is written.
+     */
+    static void transfer(FileChannel in, long position, long count, WritableByteChannel out, MediaDigest... digests) throws IOException {
+        if (digests.length > 0) {
+            for (long offset = 0; offset < count; offset += MAP_WINDOW) {
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position + offset, Math.min(MAP_WINDOW, count - offset));
+                MediaDigest.update(window, digests);
+                while (window.hasRemaining()) {
+                    out.write(window);
+                }
+            }
+            return;
+        }
+        while (count > 0) {
+            long n = in.transferTo(position, count, out);
+            if (n <= 0) {
+                throw new IOException("Unable to copy media data");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites MP4/3GP files so the moov box comes before the media data, allowing servers and
+ * players to start on a file before all of it has arrived. Only the moov box is loaded into
+ * memory; the rest of the file is copied with FileChannel.transferTo.
+ */
+public class Mp4Faststart {
+
+    /**
+     * Writes a faststart copy of the input file.
+     *
+     * @param in        The captured MP4/3GP file
+     * @param out       The file to write; left empty if false is returned
+     * @param digests   Digests fed with every byte written to out
+     * @return          true if out was written, false if the input already has moov before its
+     *                  media data or is not a file this class can rewrite
+     */
+    public static boolean process(File in, File out, MediaDigest... digests) throws IOException {
+        try (FileChannel output = new FileOutputStream(out).getChannel()) {
+            return process(in, output, digests);
+        }
+    }
+
+    /**
+     * Writes a faststart copy of the input file to a channel, strictly in order, so it can go
+     * straight into a cipher.
+     *
+     * @param in        The captured MP4/3GP file
+     * @param out       The channel to write; nothing is written if false is returned
+     * @param digests   Digests fed with every byte written to out
+     * @return          true if out was written, false if the input already has moov before its
+     *                  media data or is not a file this class can rewrite
+     */
+    public static boolean process(File in, WritableByteChannel out, MediaDigest... digests) throws IOException {
+        try (FileChannel input = new FileInputStream(in).getChannel()) {
+            List<Mp4Box.Extent> extents = Mp4Box.scan(input);
+            Mp4Box.Extent moovExtent = Mp4Box.first(extents, "moov");
+            Mp4Box.Extent mdatExtent = Mp4Box.first(extents, "mdat");
+            if (moovExtent == null || mdatExtent == null || moovExtent.offset < mdatExtent.offset) {
+                return false;
+            }
+            // Fragmented files keep their sample tables in moof boxes, which are not patched here
+            if (Mp4Box.first(extents, "moof") != null) {
+                return false;
+            }
+
+            Mp4Box moov = Mp4Box.read(input, moovExtent);
+
+            // ftyp stays first; moov follows it and everything else keeps its relative order
+            List<Mp4Box.Extent> order = new ArrayList<Mp4Box.Extent>();
+            Mp4Box.Extent ftyp = Mp4Box.first(extents, "ftyp");
+            if (ftyp != null) {
+                order.add(ftyp);
+            }
+            order.add(moovExtent);
+            for (Mp4Box.Extent extent : extents) {
+                if (extent != ftyp && extent != moovExtent && !extent.type.equals("free") && !extent.type.equals("skip")) {
+                    order.add(extent);
+                }
+            }
+
+            // Widening an stco table to co64 grows moov and moves the data again, so repeat
+            // until every offset fits
+            List<ChunkOffsets> tables = ChunkOffsets.collect(moov);
+            while (!ChunkOffsets.fit(tables, order, layout(order, moovExtent, moov.size()))) {
+                // one table was widened, lay the file out again
+            }
+            ByteBuffer moovBytes = moov.toByteBuffer();
+
+            for (Mp4Box.Extent extent : order) {
+                if (extent == moovExtent) {
+                    MediaDigest.update(moovBytes, digests);
+                    while (moovBytes.hasRemaining()) {
+                        out.write(moovBytes);
+                    }
+                } else {
+                    Mp4Box.transfer(input, extent.offset, extent.size, out, digests);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return  The new offset of every box in order, with moov taking moovSize bytes
+     */
+    private static long[] layout(List<Mp4Box.Extent> order, Mp4Box.Extent moovExtent, long moovSize) {
+        long[] offsets = new long[order.size()];
+        long position = 0;
+        for (int i = 0; i < order.size(); i++) {
+            offsets[i] = position;
+            position += order.get(i) == moovExtent ? moovSize : order.get(i).size;
+        }
+        return offsets;
+    }
+
+    static long relocate(long offset, List<Mp4Box.Extent> order, long[] newOffsets) throws IOException {
+        for (int i = 0; i < order.size(); i++) {
+            Mp4Box.Extent extent = order.get(i);
+            if (extent.contains(offset)) {
+                return newOffsets[i] + (offset - extent.offset);
+            }
+        }
+        throw new IOException("Chunk offset " + offset + " is outside the retained boxes");
+    }
+
+    /**
+     * An stco or co64 table together with the offsets it held in the original file.
+     */
+    static class ChunkOffsets {
+        final Mp4Box stbl;
+        Mp4Box table;
+        final int versionAndFlags;
+        final long[] original;
+
+        private ChunkOffsets(Mp4Box stbl, Mp4Box table) {
+            this.stbl = stbl;
+            this.table = table;
+            ByteBuffer in = table.payload.duplicate();
+            this.versionAndFlags = in.getInt();
+            this.original = new long[in.getInt()];
+            boolean wide = table.type.equals("co64");
+            for (int i = 0; i < original.length; i++) {
+                original[i] = wide ? in.getLong() : in.getInt() & 0xFFFFFFFFL;
+            }
+        }
+
+        static List<ChunkOffsets> collect(Mp4Box moov) {
+            List<ChunkOffsets> tables = new ArrayList<ChunkOffsets>();
+            for (Mp4Box stbl : moov.findAll("stbl")) {
+                for (Mp4Box table : stbl.children) {
+                    if (table.type.equals("stco") || table.type.equals("co64")) {
+                        tables.add(new ChunkOffsets(stbl, table));
+                    }
+                }
+            }
+            return tables;
+        }
+
+        /**
+         * Rewrites every table for the new layout.
+         *
+         * @return  false if an stco table had to be widened to co64, which changes the size of
+         *          moov and so requires a new layout
+         */
+        static boolean fit(List<ChunkOffsets> tables, List<Mp4Box.Extent> order, long[] newOffsets) throws IOException {
+            for (ChunkOffsets t : tables) {
+                boolean wide = t.table.type.equals("co64");
+                long[] offsets = new long[t.original.length];
+                long max = 0;
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = relocate(t.original[i], order, newOffsets);
+                    max = Math.max(max, offsets[i]);
+                }
+
+                if (!wide && max > 0xFFFFFFFFL) {
+                    Mp4Box co64 = new Mp4Box("co64", encode(t.versionAndFlags, offsets, true));
+                    t.stbl.children.set(t.stbl.children.indexOf(t.table), co64);
+                    t.table = co64;
+                    return false;
+                }
+                t.table.payload = encode(t.versionAndFlags, offsets, wide);
+            }
+            return true;
+        }
+
+        private static ByteBuffer encode(int versionAndFlags, long[] offsets, boolean wide) {
+            ByteBuffer out = ByteBuffer.allocate(8 + offsets.length * (wide ? 8 : 4));
+            out.putInt(versionAndFlags).putInt(offsets.length);
+            for (long offset : offsets) {
+                if (wide) {
+                    out.putLong(offset);
+                } else {
+                    out.putInt((int) offset);
+                }
+            }
+            out.flip();
+            return out;
+        }
+    }
+}
@@ -0,0 +1,600 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Cuts MP4/3GP files without re-encoding. The start of the cut snaps back to the closest sync
+ * sample (keyframe) of the first video track, so the output decodes cleanly; the end is cut at
+ * the first sample past the requested time. Sample tables are rebuilt from stts, stss, stsz, stsc
+ * and stco/co64 and the kept samples are copied with FileChannel.transferTo into a single mdat
+ * that follows moov.
+ */
+public class Mp4Trimmer {
+
+    /**
+     * Writes the part of the input between start and end.
+     *
+     * @param in        The captured MP4/3GP file
+     * @param out       The file to write; left empty if false is returned
+     * @param start     Start of the cut in seconds, moved back to the previous keyframe
+     * @param end       End of the cut in seconds
+     * @param digests   Digests fed with every byte written to out
+     * @return          true if out was written, false if the range covers the whole file or
+     *                  the file cannot be trimmed
+     */
+    public static boolean trim(File in, File out, double start, double end, MediaDigest... digests) throws IOException {
+        try (FileChannel output = new FileOutputStream(out).getChannel()) {
+            return trim(in, output, start, end, digests);
+        }
+    }
+
+    /**
+     * Writes the part of the input between start and end to a channel, strictly in order, so it
+     * can go straight into a cipher.
+     *
+     * @param in        The captured MP4/3GP file
+     * @param out       The channel to write; nothing is written if false is returned
+     * @param start     Start of the cut in seconds, moved back to the previous keyframe
+     * @param end       End of the cut in seconds
+     * @param digests   Digests fed with every byte written to out
+     * @return          true if out was written, false if the range covers the whole file or
+     *                  the file cannot be trimmed
+     */
+    public static boolean trim(File in, WritableByteChannel out, double start, double end, MediaDigest... digests) throws IOException {
+        try (FileChannel input = new FileInputStream(in).getChannel()) {
+            List<Mp4Box.Extent> extents = Mp4Box.scan(input);
+            Mp4Box.Extent moovExtent = Mp4Box.first(extents, "moov");
+            if (moovExtent == null || Mp4Box.first(extents, "moof") != null) {
+                return false;
+            }
+
+            Mp4Box moov = Mp4Box.read(input, moovExtent);
+            Mp4Box mvhd = moov.child("mvhd");
+            if (mvhd == null) {
+                return false;
+            }
+
+            List<Track> tracks = new ArrayList<Track>();
+            Track reference = null;
+            for (Mp4Box trak : moov.findAll("trak")) {
+                Track track = Track.parse(trak);
+                if (track == null) {
+                    return false;
+                }
+                tracks.add(track);
+                if (reference == null && track.video) {
+                    reference = track;
+                }
+            }
+            if (tracks.isEmpty()) {
+                return false;
+            }
+            if (reference == null) {
+                reference = tracks.get(0);
+            }
+
+            // Snap the start back to a keyframe of the reference track and express it as a
+            // fraction so every track cuts at the same instant
+            int refFirst = reference.keyframeAtOrBefore(Math.round(start * reference.timescale));
+            long startNum = reference.sampleCount() == 0 ? 0 : reference.times[refFirst];
+            long startDen = reference.timescale;
+
+            boolean trimmed = false;
+            for (Track track : tracks) {
+                long trackStart = startNum * track.timescale / startDen;
+                long trackEnd = Math.round(end * track.timescale);
+                track.first = track == reference ? refFirst : track.sampleAtOrBefore(trackStart);
+                track.last = track.sampleAtOrAfter(trackEnd);
+                if (track.last < track.first) {
+                    track.last = track.first;
+                }
+                trimmed |= track.first > 0 || track.last < track.sampleCount();
+            }
+            if (!trimmed) {
+                return false;
+            }
+
+            // Every kept run of samples from one source chunk becomes one output chunk; keeping
+            // them in source order preserves the original interleaving
+            List<Run> runs = new ArrayList<Run>();
+            long mediaLength = 0;
+            for (Track track : tracks) {
+                track.collectRuns(runs);
+            }
+            Collections.sort(runs, new Comparator<Run>() {
+                @Override
+                public int compare(Run a, Run b) {
+                    return Long.compare(a.source, b.source);
+                }
+            });
+            for (Run run : runs) {
+                mediaLength += run.length;
+            }
+
+            long movieTimescale = readTimescale(mvhd);
+            long movieDuration = 0;
+            for (Track track : tracks) {
+                long mediaDuration = track.keptDuration();
+                long trackDuration = mediaDuration * movieTimescale / track.timescale;
+                writeDuration(track.mdhd, mediaDuration);
+                writeTkhdDuration(track.tkhd, trackDuration);
+                movieDuration = Math.max(movieDuration, trackDuration);
+                // The edit list describes the untrimmed timeline
+                track.trak.children.remove(track.trak.child("edts"));
+            }
+            writeDuration(mvhd, movieDuration);
+
+            Mp4Box.Extent ftyp = Mp4Box.first(extents, "ftyp");
+            long ftypSize = ftyp == null ? 0 : ftyp.size;
+            boolean wide = ftypSize + moov.size() + 16 + mediaLength > 0xFFFFFFFFL;
+            int mdatHeader = wide ? 16 : 8;
+
+            // Offsets depend on the size of moov, which depends on the offset tables; the tables
+            // have a fixed width here, so building them twice settles the layout
+            for (int pass = 0; pass < 2; pass++) {
+                long position = ftypSize + moov.size() + mdatHeader;
+                for (Run run : runs) {
+                    run.target = position;
+                    position += run.length;
+                }
+                for (Track track : tracks) {
+                    track.rebuildSampleTables(wide);
+                }
+            }
+
+            if (ftyp != null) {
+                Mp4Box.transfer(input, ftyp.offset, ftyp.size, out, digests);
+            }
+            ByteBuffer moovBytes = moov.toByteBuffer();
+            MediaDigest.update(moovBytes, digests);
+            while (moovBytes.hasRemaining()) {
+                out.write(moovBytes);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(mdatHeader);
+            if (wide) {
+                header.putInt(1).put(new byte[]{'m', 'd', 'a', 't'}).putLong(16 + mediaLength);
+            } else {
+                header.putInt((int) (8 + mediaLength)).put(new byte[]{'m', 'd', 'a', 't'});
+            }
+            header.flip();
+            MediaDigest.update(header, digests);
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (Run run : runs) {
+                Mp4Box.transfer(input, run.source, run.length, out, digests);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return  The duration of the file's longest track in seconds, or -1 if it cannot be read
+     */
+    public static double getDuration(File in) throws IOException {
+        try (FileChannel input = new FileInputStream(in).getChannel()) {
+            Mp4Box.Extent moovExtent = Mp4Box.first(Mp4Box.scan(input), "moov");
+            if (moovExtent == null) {
+                return -1;
+            }
+            Mp4Box mvhd = Mp4Box.read(input, moovExtent).child("mvhd");
+            if (mvhd == null) {
+                return -1;
+            }
+            ByteBuffer p = mvhd.payload;
+            long timescale = readTimescale(mvhd);
+            long duration = p.get(0) == 1 ? p.getLong(24) : p.getInt(16) & 0xFFFFFFFFL;
+            return timescale == 0 ? -1 : (double) duration / timescale;
+        }
+    }
+
+    // mvhd and mdhd share the layout of their timescale and duration fields
+    private static long readTimescale(Mp4Box box) {
+        ByteBuffer p = box.payload;
+        return p.getInt(p.position() + (p.get(p.position()) == 1 ? 20 : 12)) & 0xFFFFFFFFL;
+    }
+
+    private static void writeDuration(Mp4Box box, long duration) {
+        ByteBuffer p = copy(box);
+        if (p.get(0) == 1) {
+            p.putLong(24, duration);
+        } else {
+            p.putInt(16, (int) duration);
+        }
+    }
+
+    private static void writeTkhdDuration(Mp4Box tkhd, long duration) {
+        ByteBuffer p = copy(tkhd);
+        if (p.get(0) == 1) {
+            p.putLong(28, duration);
+        } else {
+            p.putInt(20, (int) duration);
+        }
+    }
+
+    /**
+     * Replaces a leaf box payload with a writable copy starting at position 0.
+     */
+    private static ByteBuffer copy(Mp4Box box) {
+        ByteBuffer p = ByteBuffer.allocate(box.payload.remaining());
+        p.put(box.payload.duplicate());
+        p.flip();
+        box.payload = p;
+        return p;
+    }
+
+    /**
+     * A run of consecutive samples of one track read from one source chunk.
+     */
+    private static class Run {
+        final Track track;
+        final long source;
+        final long length;
+        final int samples;
+        final int descriptionIndex;
+        long target;
+
+        Run(Track track, long source, long length, int samples, int descriptionIndex) {
+            this.track = track;
+            this.source = source;
+            this.length = length;
+            this.samples = samples;
+            this.descriptionIndex = descriptionIndex;
+        }
+    }
+
+    /**
+     * The sample tables of one trak expanded to one entry per sample.
+     */
+    private static class Track {
+        Mp4Box trak;
+        Mp4Box tkhd;
+        Mp4Box mdhd;
+        Mp4Box stbl;
+        long timescale;
+        boolean video;
+
+        long[] offsets;
+        int[] sizes;
+        int[] deltas;
+        long[] times;
+        int[] descriptionIndexes;
+        int[] chunkIndexes;
+        int[] compositionOffsets;     // null without ctts
+        int cttsVersionAndFlags;
+        boolean[] sync;               // null without stss, meaning every sample is a sync sample
+
+        int first;
+        int last;
+        final List<Run> runs = new ArrayList<Run>();
+
+        int sampleCount() {
+            return sizes.length;
+        }
+
+        static Track parse(Mp4Box trak) {
+            Track t = new Track();
+            t.trak = trak;
+            t.tkhd = trak.child("tkhd");
+            Mp4Box mdia = trak.child("mdia");
+            Mp4Box minf = mdia == null ? null : mdia.child("minf");
+            t.stbl = minf == null ? null : minf.child("stbl");
+            t.mdhd = mdia == null ? null : mdia.child("mdhd");
+            Mp4Box hdlr = mdia == null ? null : mdia.child("hdlr");
+            if (t.tkhd == null || t.stbl == null || t.mdhd == null || hdlr == null) {
+                return null;
+            }
+
+            Mp4Box stts = t.stbl.child("stts");
+            Mp4Box stsz = t.stbl.child("stsz");
+            Mp4Box stsc = t.stbl.child("stsc");
+            Mp4Box stco = t.stbl.child("stco");
+            Mp4Box co64 = t.stbl.child("co64");
+            if (stts == null || stsz == null || stsc == null || (stco == null && co64 == null)) {
+                return null;
+            }
+
+            t.timescale = readTimescale(t.mdhd);
+            ByteBuffer h = hdlr.payload.duplicate();
+            t.video = h.getInt(h.position() + 8) == 0x76696465; // 'vide'
+            if (t.timescale == 0) {
+                return null;
+            }
+
+            // stsz
+            ByteBuffer p = stsz.payload.duplicate();
+            p.getInt();
+            int fixedSize = p.getInt();
+            int count = p.getInt();
+            t.sizes = new int[count];
+            for (int i = 0; i < count; i++) {
+                t.sizes[i] = fixedSize != 0 ? fixedSize : p.getInt();
+            }
+
+            // stts
+            t.deltas = new int[count];
+            t.times = new long[count];
+            p = stts.payload.duplicate();
+            p.getInt();
+            int entries = p.getInt();
+            int sample = 0;
+            long time = 0;
+            for (int e = 0; e < entries && sample < count; e++) {
+                int n = p.getInt();
+                int delta = p.getInt();
+                for (int i = 0; i < n && sample < count; i++, sample++) {
+                    t.deltas[sample] = delta;
+                    t.times[sample] = time;
+                    time += delta;
+                }
+            }
+
+            // ctts
+            Mp4Box ctts = t.stbl.child("ctts");
+            if (ctts != null) {
+                t.compositionOffsets = new int[count];
+                p = ctts.payload.duplicate();
+                t.cttsVersionAndFlags = p.getInt();
+                entries = p.getInt();
+                sample = 0;
+                for (int e = 0; e < entries && sample < count; e++) {
+                    int n = p.getInt();
+                    int offset = p.getInt();
+                    for (int i = 0; i < n && sample < count; i++) {
+                        t.compositionOffsets[sample++] = offset;
+                    }
+                }
+            }
+
+            // stss
+            Mp4Box stss = t.stbl.child("stss");
+            if (stss != null) {
+                t.sync = new boolean[count];
+                p = stss.payload.duplicate();
+                p.getInt();
+                entries = p.getInt();
+                for (int e = 0; e < entries; e++) {
+                    int number = p.getInt();
+                    if (number >= 1 && number <= count) {
+                        t.sync[number - 1] = true;
+                    }
+                }
+            }
+
+            // stco/co64
+            boolean wide = stco == null;
+            p = (wide ? co64 : stco).payload.duplicate();
+            p.getInt();
+            int chunkCount = p.getInt();
+            long[] chunkOffsets = new long[chunkCount];
+            for (int c = 0; c < chunkCount; c++) {
+                chunkOffsets[c] = wide ? p.getLong() : p.getInt() & 0xFFFFFFFFL;
+            }
+
+            // stsc
+            p = stsc.payload.duplicate();
+            p.getInt();
+            entries = p.getInt();
+            int[] firstChunks = new int[entries];
+            int[] samplesPerChunk = new int[entries];
+            int[] descriptions = new int[entries];
+            for (int e = 0; e < entries; e++) {
+                firstChunks[e] = p.getInt();
+                samplesPerChunk[e] = p.getInt();
+                descriptions[e] = p.getInt();
+            }
+
+            t.offsets = new long[count];
+            t.descriptionIndexes = new int[count];
+            t.chunkIndexes = new int[count];
+            sample = 0;
+            int entry = 0;
+            for (int c = 0; c < chunkCount && sample < count; c++) {
+                while (entry + 1 < entries && firstChunks[entry + 1] <= c + 1) {
+                    entry++;
+                }
+                long offset = chunkOffsets[c];
+                int n = entries == 0 ? 0 : samplesPerChunk[entry];
+                for (int i = 0; i < n && sample < count; i++, sample++) {
+                    t.offsets[sample] = offset;
+                    t.descriptionIndexes[sample] = descriptions[entry];
+                    t.chunkIndexes[sample] = c;
+                    offset += t.sizes[sample];
+                }
+            }
+            if (sample < count) {
+                return null;
+            }
+            return t;
+        }
+
+        int sampleAtOrBefore(long time) {
+            int index = 0;
+            for (int i = 0; i < times.length && times[i] <= time; i++) {
+                index = i;
+            }
+            return index;
+        }
+
+        int keyframeAtOrBefore(long time) {
+            int index = sampleAtOrBefore(time);
+            while (index > 0 && sync != null && !sync[index]) {
+                index--;
+            }
+            return index;
+        }
+
+        int sampleAtOrAfter(long time) {
+            for (int i = 0; i < times.length; i++) {
+                if (times[i] >= time) {
+                    return i;
+                }
+            }
+            return times.length;
+        }
+
+        long keptDuration() {
+            long duration = 0;
+            for (int i = first; i < last; i++) {
+                duration += deltas[i];
+            }
+            return duration;
+        }
+
+        void collectRuns(List<Run> all) {
+            runs.clear();
+            int i = first;
+            while (i < last) {
+                int j = i;
+                long length = 0;
+                while (j < last && chunkIndexes[j] == chunkIndexes[i]) {
+                    length += sizes[j];
+                    j++;
+                }
+                Run run = new Run(this, offsets[i], length, j - i, descriptionIndexes[i]);
+                runs.add(run);
+                all.add(run);
+                i = j;
+            }
+        }
+
+        /**
+         * Replaces the sample tables of stbl with ones describing the kept samples at the
+         * output offsets assigned to this track's runs.
+         */
+        void rebuildSampleTables(boolean wide) {
+            int kept = last - first;
+            List<Mp4Box> tables = new ArrayList<Mp4Box>();
+            tables.add(stbl.child("stsd"));
+
+            // stts
+            IntPairs stts = new IntPairs();
+            for (int i = first; i < last; i++) {
+                stts.add(deltas[i]);
+            }
+            tables.add(new Mp4Box("stts", stts.encode(0)));
+
+            if (compositionOffsets != null) {
+                IntPairs ctts = new IntPairs();
+                for (int i = first; i < last; i++) {
+                    ctts.add(compositionOffsets[i]);
+                }
+                tables.add(new Mp4Box("ctts", ctts.encode(cttsVersionAndFlags)));
+            }
+
+            if (sync != null) {
+                int syncCount = 0;
+                for (int i = first; i < last; i++) {
+                    if (sync[i]) {
+                        syncCount++;
+                    }
+                }
+                ByteBuffer stss = ByteBuffer.allocate(8 + syncCount * 4);
+                stss.putInt(0).putInt(syncCount);
+                for (int i = first; i < last; i++) {
+                    if (sync[i]) {
+                        stss.putInt(i - first + 1);
+                    }
+                }
+                stss.flip();
+                tables.add(new Mp4Box("stss", stss));
+            }
+
+            // stsc, merging consecutive chunks with the same layout
+            List<int[]> stscEntries = new ArrayList<int[]>();
+            for (int c = 0; c < runs.size(); c++) {
+                Run run = runs.get(c);
+                int[] previous = stscEntries.isEmpty() ? null : stscEntries.get(stscEntries.size() - 1);
+                if (previous == null || previous[1] != run.samples || previous[2] != run.descriptionIndex) {
+                    stscEntries.add(new int[]{c + 1, run.samples, run.descriptionIndex});
+                }
+            }
+            ByteBuffer stsc = ByteBuffer.allocate(8 + stscEntries.size() * 12);
+            stsc.putInt(0).putInt(stscEntries.size());
+            for (int[] e : stscEntries) {
+                stsc.putInt(e[0]).putInt(e[1]).putInt(e[2]);
+            }
+            stsc.flip();
+            tables.add(new Mp4Box("stsc", stsc));
+
+            ByteBuffer stsz = ByteBuffer.allocate(12 + kept * 4);
+            stsz.putInt(0).putInt(0).putInt(kept);
+            for (int i = first; i < last; i++) {
+                stsz.putInt(sizes[i]);
+            }
+            stsz.flip();
+            tables.add(new Mp4Box("stsz", stsz));
+
+            ByteBuffer chunks = ByteBuffer.allocate(8 + runs.size() * (wide ? 8 : 4));
+            chunks.putInt(0).putInt(runs.size());
+            for (Run run : runs) {
+                if (wide) {
+                    chunks.putLong(run.target);
+                } else {
+                    chunks.putInt((int) run.target);
+                }
+            }
+            chunks.flip();
+            tables.add(new Mp4Box(wide ? "co64" : "stco", chunks));
+
+            // Tables such as sdtp or sbgp describe individual samples and would no longer match
+            stbl.children.clear();
+            stbl.children.addAll(tables);
+        }
+    }
+
+    /**
+     * Run-length encoder for the (count, value) tables stts and ctts.
+     */
+    private static class IntPairs {
+        private final List<int[]> entries = new ArrayList<int[]>();
+
+        void add(int value) {
+            int[] last = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+            if (last != null && last[1] == value) {
+                last[0]++;
+            } else {
+                entries.add(new int[]{1, value});
+            }
+        }
+
+        ByteBuffer encode(int versionAndFlags) {
+            ByteBuffer out = ByteBuffer.allocate(8 + entries.size() * 8);
+            out.putInt(versionAndFlags).putInt(entries.size());
+            for (int[] e : entries) {
+                out.putInt(e[0]).putInt(e[1]);
+            }
+            out.flip();
+            return out;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer single-consumer ring buffer of 16 bit PCM samples. The recording thread and
+ * the encoding thread never take a lock: each side only advances its own index and publishes it
+ * with an ordered store after copying, so the other side always sees complete samples.
+ */
+public class PcmRingBuffer {
+    private final short[] buffer;
+    private final int mask;
+
+    // Total samples ever written and read; their difference is the fill level
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param minCapacity   The number of samples the buffer must hold, rounded up to a power of two
+     */
+    public PcmRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        this.buffer = new short[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Copies samples into the buffer. Only the producer thread may call this. A block that does
+     * not fit is dropped whole rather than blocking the recording thread, which keeps interleaved
+     * channels aligned, and is counted in getDropped().
+     *
+     * @return  true if the samples were written
+     */
+    public boolean write(short[] src, int offset, int length) {
+        long h = head.get();
+        if (length > buffer.length - (int) (h - tail.get())) {
+            dropped.addAndGet(length);
+            return false;
+        }
+        int start = (int) (h & mask);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, first);
+        System.arraycopy(src, offset + first, buffer, 0, length - first);
+        head.lazySet(h + length);
+        return true;
+    }
+
+    /**
+     * Copies available samples out of the buffer. Only the consumer thread may call this.
+     *
+     * @return  The number of samples read, 0 if none are available
+     */
+    public int read(short[] dst, int offset, int length) {
+        long t = tail.get();
+        int n = Math.min(length, (int) (head.get() - t));
+        int start = (int) (t & mask);
+        int first = Math.min(n, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, n - first);
+        tail.lazySet(t + n);
+        return n;
+    }
+
+    public int available() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Marks the end of the stream. Called by the producer after its last write.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * @return  true once the producer has closed the buffer and every sample has been read
+     */
+    public boolean isDrained() {
+        return closed && available() == 0;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of recorded 16 bit PCM, such as a container writer or an encoder.
+ */
+public interface PcmSink extends Closeable {
+
+    /**
+     * @param pcm       Interleaved samples
+     * @param offset    Index of the first sample to write
+     * @param length    Number of samples, a multiple of the channel count
+     */
+    void write(short[] pcm, int offset, int length) throws IOException;
+
+    /**
+     * Flushes buffered audio and finishes the file.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -29,6 +29,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Holds the pending javascript requests for the plugin
  */
@@ -44,6 +49,18 @@ public class PendingRequests {
     private Bundle lastSavedState;
     private CallbackContext resumeContext;
 
+    // Survives process death, unlike the saved Bundle; null until openJournal() succeeds
+    private RequestJournal journal;
+
+    // Receives the results of every successful request; null if captures are not cataloged
+    private MediaCatalog catalog;
+
+    // Requests left unresolved by a previous process, keyed by request code
+    private SparseArray<RequestJournal.Entry> recovered = new SparseArray<RequestJournal.Entry>();
+
+    // The same requests, kept after they have been taken or resumed
+    private List<RequestJournal.Entry> journaled = new ArrayList<RequestJournal.Entry>();
+
     /**
      * Creates a request and adds it to the array of pending requests. Each created request gets a
      * unique result code for use with startActivityForResult() and requestPermission()
@@ -56,9 +73,123 @@ public class PendingRequests {
     public synchronized Request createRequest(int action, JSONObject options, CallbackContext callbackContext) throws JSONException {
         Request req = new Request(action, options, callbackContext);
         requests.put(req.requestCode, req);
+        if (journal != null) {
+            journal.created(req.requestCode, action, String.valueOf(options));
+        }
         return req;
     }
 
+    /**
+     * Opens the journal and replays it. Requests a previous process left unresolved become
+     * available through getRecovered(), and request codes continue after theirs so a result
+     * for a recovered request cannot be mistaken for a new one.
+     *
+     * @param file  The journal file, which should be in storage the system does not purge
+     */
+    public synchronized void openJournal(File file) {
+        RequestJournal opened = new RequestJournal(file);
+        try {
+            List<RequestJournal.Entry> entries = opened.open();
+            for (RequestJournal.Entry entry : entries) {
+                recovered.put(entry.requestCode, entry);
+                currentReqId = Math.max(currentReqId, entry.requestCode + 1);
+            }
+            journaled = entries;
+            journal = opened;
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Unable to open request journal, captures will not survive process death", e);
+        }
+    }
+
+    /**
+     * Sets the catalog that successful results are added to when their request is resolved.
+     */
+    public synchronized void setCatalog(MediaCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Forces journal records to disk, before control passes to another app.
+     */
+    public synchronized void syncJournal() {
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    public synchronized void closeJournal() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Adds a finalized MediaFile to the results of a request and logs it.
+     */
+    public synchronized void addResult(Request req, JSONObject mediaFile) {
+        req.results.put(mediaFile);
+        if (journal != null) {
+            journal.result(req.requestCode, mediaFile.toString());
+        }
+    }
+
+    /**
+     * Logs plugin state needed to finish a request after a restart, and forces it to disk since
+     * the process may be killed as soon as another app is in front.
+     */
+    public synchronized void saveState(Request req, JSONObject state) {
+        if (journal != null) {
+            journal.state(req.requestCode, state.toString());
+            journal.sync();
+        }
+    }
+
+    /**
+     * @return  The state last saved for a request by this or a previous process, or null
+     */
+    public synchronized JSONObject getSavedState(int requestCode) {
+        String state = journal != null ? journal.getState(requestCode) : null;
+        if (state == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(state);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes and returns the requests a previous process left unresolved, except one resumed
+     * through the saved Bundle. The caller delivers their results and marks them resolved.
+     */
+    public synchronized List<RequestJournal.Entry> takeRecovered() {
+        List<RequestJournal.Entry> entries = new ArrayList<RequestJournal.Entry>();
+        for (int i = 0; i < recovered.size(); i++) {
+            entries.add(recovered.valueAt(i));
+        }
+        recovered.clear();
+        return entries;
+    }
+
+    /**
+     * @return  Every request a previous process left unresolved when the journal was opened,
+     *          whether or not it has been taken or resumed since
+     */
+    public synchronized List<RequestJournal.Entry> getJournaled() {
+        return new ArrayList<RequestJournal.Entry>(journaled);
+    }
+
+    /**
+     * Marks a recovered request as delivered so it is not replayed again.
+     */
+    public synchronized void resolveRecovered(int requestCode) {
+        if (journal != null) {
+            journal.resolved(requestCode);
+        }
+    }
+
     /**
      * Gets the request corresponding to this request code
      * @param requestCode   The request code for the desired request
@@ -71,6 +202,32 @@ public class PendingRequests {
             Request r = new Request(lastSavedState.getBundle(REQUEST_KEY_PREFIX + requestCode), this.resumeContext, requestCode);
             requests.put(requestCode, r);
 
+            // Results finalized after the Bundle was saved are only in the journal
+            RequestJournal.Entry entry = recovered.get(requestCode);
+            if (entry != null) {
+                recovered.remove(requestCode);
+                if (entry.results.size() > r.results.length()) {
+                    r.results = new JSONArray();
+                    for (String result : entry.results) {
+                        try {
+                            r.results.put(new JSONObject(result));
+                        } catch (JSONException e) {
+                            LOG.w(LOG_TAG, "Skipping unreadable journaled result");
+                        }
+                    }
+                }
+                if (journal != null) {
+                    // Re-log the request so it stays recoverable in this process
+                    journal.created(requestCode, r.action, entry.options);
+                    for (int i = 0; i < r.results.length(); i++) {
+                        journal.result(requestCode, r.results.optJSONObject(i).toString());
+                    }
+                    if (entry.state != null) {
+                        journal.state(requestCode, entry.state);
+                    }
+                }
+            }
+
             // Only one of the saved requests will get restored, because that's all cordova-android
             // supports. Having more than one is an extremely unlikely scenario anyway
             this.lastSavedState = null;
@@ -91,6 +248,9 @@ public class PendingRequests {
     public synchronized void resolveWithFailure(Request req, JSONObject error) {
         req.callbackContext.error(error);
         requests.remove(req.requestCode);
+        if (journal != null) {
+            journal.resolved(req.requestCode);
+        }
     }
 
     /**
@@ -99,8 +259,22 @@ public class PendingRequests {
      * @param req   The request to be resolved
      */
     public synchronized void resolveWithSuccess(Request req) {
-        req.callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, req.results));
+        if (catalog != null) {
+            catalog.add(req.results);
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, req.results);
+        if (req.compact) {
+            try {
+                result = new PluginResult(PluginResult.Status.OK, CompactResults.encode(req.results));
+            } catch (JSONException e) {
+                LOG.w(LOG_TAG, "Returning results uncompacted", e);
+            }
+        }
+        req.callbackContext.sendPluginResult(result);
         requests.remove(req.requestCode);
+        if (journal != null) {
+            journal.resolved(req.requestCode);
+        }
     }
 
 
@@ -123,7 +297,7 @@ public class PendingRequests {
     public synchronized void setLastSavedState(Bundle lastSavedState, CallbackContext resumeContext) {
         this.lastSavedState = lastSavedState;
         this.resumeContext = resumeContext;
-        this.currentReqId = lastSavedState.getInt(CURRENT_ID_KEY);
+        this.currentReqId = Math.max(this.currentReqId, lastSavedState.getInt(CURRENT_ID_KEY));
     }
 
     /**
@@ -144,8 +318,9 @@ public class PendingRequests {
         if (requests.size() > 1) {
             // This scenario is hopefully very unlikely because there isn't much that can be
             // done about it. Should only occur if an external Activity is launched while
-            // there is a pending permission request and the device is on low memory
-            LOG.w(LOG_TAG, "More than one media capture request pending on Activity destruction. Some requests will be dropped!");
+            // there is a pending permission request and the device is on low memory. The others
+            // stay in the journal and are returned by recoverCaptures
+            LOG.w(LOG_TAG, "More than one media capture request pending on Activity destruction. Only one can be resumed!");
         }
 
         return bundle;
@@ -162,6 +337,24 @@ public class PendingRequests {
         private static final String DURATION_KEY = "duration";
         private static final String QUALITY_KEY = "quality";
         private static final String RESULTS_KEY = "results";
+        private static final String STORAGE_KEY = "storage";
+        private static final String DIGESTS_KEY = "digests";
+        private static final String DEDUPE_KEY = "dedupe";
+        private static final String PERCEPTUAL_HASH_KEY = "perceptualHash";
+        private static final String NEAR_DUPLICATE_DISTANCE_KEY = "nearDuplicateDistance";
+        private static final String ENCRYPT_KEY = "encrypt";
+        private static final String KEY_ALIAS_KEY = "keyAlias";
+        private static final String FASTSTART_KEY = "faststart";
+        private static final String RECORDER_KEY = "recorder";
+        private static final String FORMAT_KEY = "format";
+        private static final String SAMPLE_RATE_KEY = "sampleRate";
+        private static final String CHANNELS_KEY = "channels";
+        private static final String TRIM_SILENCE_KEY = "trimSilence";
+        private static final String SILENCE_THRESHOLD_KEY = "silenceThreshold";
+        private static final String SILENCE_HANGOVER_KEY = "silenceHangover";
+        private static final String NORMALIZE_KEY = "normalize";
+        private static final String WAVEFORM_KEY = "waveform";
+        private static final String COMPACT_KEY = "compact";
 
         // Unique int used to identify this request in any Android Permission or Activity callbacks
         public int requestCode;
@@ -178,6 +371,56 @@ public class PendingRequests {
         // Quality level for video capture 0 low, 1 high (CAPTURE_VIDEO only)
         public int quality = 1;
 
+        // Where captured media is stored: "public" (MediaStore) or "private" (app storage only)
+        public String storage = "public";
+
+        // Names of the digests to compute for each result, see MediaDigest
+        public String[] digests = new String[0];
+
+        // Whether private captures are stored by content so identical captures share one file
+        public boolean dedupe = false;
+
+        // Whether image results get a perceptual hash and near-duplicate flag (CAPTURE_IMAGE_OR_VIDEO only)
+        public boolean perceptualHash = false;
+
+        // Largest Hamming distance between perceptual hashes that counts as a near duplicate
+        public int nearDuplicateDistance = 10;
+
+        // Whether captures are encrypted at rest, which implies private storage (images, videos and native recordings)
+        public boolean encrypt = false;
+
+        // Alias of the Android Keystore key wrapping each file's data key
+        public String keyAlias = MediaEncryption.DEFAULT_KEY_ALIAS;
+
+        // Whether captured videos are rewritten with their moov box ahead of the media data
+        public boolean faststart = false;
+
+        // "activity" records through the device's recorder app, "native" records in-process (CAPTURE_AUDIO only)
+        public String recorder = "activity";
+
+        // Container of native recordings: "wav", "aac" or "flac" (CAPTURE_AUDIO only)
+        public String format = "wav";
+
+        // Sample rate and channel count of native recordings (CAPTURE_AUDIO only)
+        public int sampleRate = 44100;
+        public int channels = 1;
+
+        // Whether leading and trailing silence is trimmed from WAV recordings (CAPTURE_AUDIO only)
+        public boolean trimSilence = false;
+
+        // Level in dBFS below which audio counts as silence, and audio kept around speech in ms
+        public double silenceThreshold = -50;
+        public int silenceHangover = 250;
+
+        // Target RMS level in dBFS for WAV recordings, NaN to leave the level unchanged (CAPTURE_AUDIO only)
+        public double normalize = Double.NaN;
+
+        // Number of buckets in the waveform summary attached to audio results, 0 for none
+        public int waveform = 0;
+
+        // Whether results are returned in the columnar form of CompactResults
+        public boolean compact = false;
+
         // The array of results to be returned to the javascript callback on success
         public JSONArray results = new JSONArray();
 
@@ -192,6 +435,27 @@ public class PendingRequests {
                 this.limit = options.optLong("limit", 1);
                 this.duration = options.optInt("duration", 0);
                 this.quality = options.optInt("quality", 1);
+                this.storage = options.optString("storage", "public");
+                this.digests = MediaDigest.parseNames(options.opt("digest"));
+                this.dedupe = options.optBoolean("dedupe", false);
+                this.perceptualHash = options.optBoolean("perceptualHash", false);
+                this.nearDuplicateDistance = options.optInt("nearDuplicateDistance", 10);
+                this.encrypt = options.optBoolean("encrypt", false);
+                this.keyAlias = options.optString("keyAlias", MediaEncryption.DEFAULT_KEY_ALIAS);
+                this.faststart = options.optBoolean("faststart", false);
+                this.recorder = options.optString("recorder", "activity");
+                this.format = options.optString("format", "wav");
+                this.sampleRate = options.optInt("sampleRate", 44100);
+                this.channels = options.optInt("channels", 1);
+                this.trimSilence = options.optBoolean("trimSilence", false);
+                this.silenceThreshold = options.optDouble("silenceThreshold", -50);
+                this.silenceHangover = options.optInt("silenceHangover", 250);
+                this.normalize = options.optDouble("normalize", Double.NaN);
+                this.waveform = options.optInt("waveform", 0);
+                this.compact = options.optBoolean("compact", false);
+                if (this.encrypt) {
+                    this.storage = "private";
+                }
             }
 
             this.requestCode = incrementCurrentReqId();
@@ -204,6 +468,27 @@ public class PendingRequests {
             this.limit = bundle.getLong(LIMIT_KEY);
             this.duration = bundle.getInt(DURATION_KEY);
             this.quality = bundle.getInt(QUALITY_KEY);
+            this.storage = bundle.getString(STORAGE_KEY, "public");
+            this.dedupe = bundle.getBoolean(DEDUPE_KEY);
+            this.perceptualHash = bundle.getBoolean(PERCEPTUAL_HASH_KEY);
+            this.nearDuplicateDistance = bundle.getInt(NEAR_DUPLICATE_DISTANCE_KEY, 10);
+            this.encrypt = bundle.getBoolean(ENCRYPT_KEY);
+            this.keyAlias = bundle.getString(KEY_ALIAS_KEY, MediaEncryption.DEFAULT_KEY_ALIAS);
+            this.faststart = bundle.getBoolean(FASTSTART_KEY);
+            this.recorder = bundle.getString(RECORDER_KEY, "activity");
+            this.format = bundle.getString(FORMAT_KEY, "wav");
+            this.sampleRate = bundle.getInt(SAMPLE_RATE_KEY, 44100);
+            this.channels = bundle.getInt(CHANNELS_KEY, 1);
+            this.trimSilence = bundle.getBoolean(TRIM_SILENCE_KEY);
+            this.silenceThreshold = bundle.getDouble(SILENCE_THRESHOLD_KEY, -50);
+            this.silenceHangover = bundle.getInt(SILENCE_HANGOVER_KEY, 250);
+            this.normalize = bundle.getDouble(NORMALIZE_KEY, Double.NaN);
+            this.waveform = bundle.getInt(WAVEFORM_KEY);
+            this.compact = bundle.getBoolean(COMPACT_KEY);
+            String[] digests = bundle.getStringArray(DIGESTS_KEY);
+            if (digests != null) {
+                this.digests = digests;
+            }
 
             try {
                 this.results = new JSONArray(bundle.getString(RESULTS_KEY));
@@ -220,6 +505,24 @@ public class PendingRequests {
             bundle.putLong(LIMIT_KEY, this.limit);
             bundle.putInt(DURATION_KEY, this.duration);
             bundle.putInt(QUALITY_KEY, this.quality);
+            bundle.putString(STORAGE_KEY, this.storage);
+            bundle.putStringArray(DIGESTS_KEY, this.digests);
+            bundle.putBoolean(DEDUPE_KEY, this.dedupe);
+            bundle.putBoolean(PERCEPTUAL_HASH_KEY, this.perceptualHash);
+            bundle.putInt(NEAR_DUPLICATE_DISTANCE_KEY, this.nearDuplicateDistance);
+            bundle.putBoolean(ENCRYPT_KEY, this.encrypt);
+            bundle.putString(KEY_ALIAS_KEY, this.keyAlias);
+            bundle.putBoolean(FASTSTART_KEY, this.faststart);
+            bundle.putString(RECORDER_KEY, this.recorder);
+            bundle.putString(FORMAT_KEY, this.format);
+            bundle.putInt(SAMPLE_RATE_KEY, this.sampleRate);
+            bundle.putInt(CHANNELS_KEY, this.channels);
+            bundle.putBoolean(TRIM_SILENCE_KEY, this.trimSilence);
+            bundle.putDouble(SILENCE_THRESHOLD_KEY, this.silenceThreshold);
+            bundle.putInt(SILENCE_HANGOVER_KEY, this.silenceHangover);
+            bundle.putDouble(NORMALIZE_KEY, this.normalize);
+            bundle.putInt(WAVEFORM_KEY, this.waveform);
+            bundle.putBoolean(COMPACT_KEY, this.compact);
             bundle.putString(RESULTS_KEY, this.results.toString());
 
             return bundle;
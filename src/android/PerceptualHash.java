@@ -0,0 +1,169 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 64 bit difference hash (dHash) of captured images, and an in-memory index used to find images
+ * of the session whose hashes are within a small Hamming distance of a new capture.
+ */
+public class PerceptualHash {
+
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+    /**
+     * Computes the dHash of an image already decoded by the capture pass. The bitmap is reduced
+     * to a 9x8 grid and each bit records whether a cell is brighter than its right neighbour.
+     */
+    public static long dHash(Bitmap bmp) {
+        Bitmap small = Bitmap.createScaledBitmap(bmp, WIDTH, HEIGHT, true);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        small.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        if (small != bmp) {
+            small.recycle();
+        }
+
+        int[] luma = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int p = pixels[i];
+            luma[i] = (((p >> 16) & 0xff) * 299 + ((p >> 8) & 0xff) * 587 + (p & 0xff) * 114) / 1000;
+        }
+        return dHash(luma);
+    }
+
+    /**
+     * @param luma  9x8 row-major luminance grid
+     */
+    static long dHash(int[] luma) {
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luma[y * WIDTH + x] > luma[y * WIDTH + x + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    public static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * BK-tree over perceptual hashes. Children are keyed by their distance to the parent, so a
+     * lookup only descends into subtrees that can hold hashes within the requested distance.
+     */
+    public static class Index {
+        private Node root;
+
+        /**
+         * Finds the closest hash within maxDistance and then adds the new hash to the index.
+         *
+         * @param hash          The hash of the new capture
+         * @param value         The value to return when a later capture matches this one
+         * @param maxDistance   The largest Hamming distance treated as a near duplicate
+         * @return              The closest earlier match, or null if there is none
+         */
+        public synchronized Match findAndAdd(long hash, String value, int maxDistance) {
+            Match match = findNearest(hash, maxDistance);
+            add(hash, value);
+            return match;
+        }
+
+        public synchronized Match findNearest(long hash, int maxDistance) {
+            Match best = null;
+            if (root == null) {
+                return null;
+            }
+
+            Deque<Node> stack = new ArrayDeque<Node>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                int d = distance(node.hash, hash);
+                if (d <= maxDistance && (best == null || d < best.distance)) {
+                    best = new Match(node.value, d);
+                }
+
+                int from = Math.max(0, d - maxDistance);
+                int to = Math.min(64, d + maxDistance);
+                for (int k = from; k <= to; k++) {
+                    if (node.children[k] != null) {
+                        stack.push(node.children[k]);
+                    }
+                }
+            }
+            return best;
+        }
+
+        public synchronized void add(long hash, String value) {
+            if (root == null) {
+                root = new Node(hash, value);
+                return;
+            }
+
+            Node node = root;
+            while (true) {
+                int d = distance(node.hash, hash);
+                if (node.children[d] == null) {
+                    node.children[d] = new Node(hash, value);
+                    return;
+                }
+                node = node.children[d];
+            }
+        }
+
+        public synchronized void clear() {
+            root = null;
+        }
+    }
+
+    public static class Match {
+        public final String value;
+        public final int distance;
+
+        Match(String value, int distance) {
+            this.value = value;
+            this.distance = distance;
+        }
+    }
+
+    private static class Node {
+        final long hash;
+        final String value;
+        final Node[] children = new Node[65];
+
+        Node(long hash, String value) {
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+}
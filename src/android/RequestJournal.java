@@ -0,0 +1,395 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import org.apache.cordova.LOG;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of capture requests that survives the process being killed, which the saved
+ * instance state Bundle alone does not. Each request is logged when it is created, when a result
+ * is finalized, when the plugin records where the camera will write, and when it is resolved.
+ * Replaying the log after a restart yields the requests that were never resolved, with the
+ * results they had collected.
+ *
+ * Records are framed as length, CRC-32 and body, so a record torn by a crash is detected and cut
+ * off on replay. Appends are buffered and forced to disk together shortly after the first one;
+ * callers force a sync before handing control to another app. Once resolved requests make up
+ * most of the file it is rewritten with only the live requests.
+ */
+public class RequestJournal {
+    private static final String LOG_TAG = "RequestJournal";
+
+    private static final int MAGIC = 0x4D434A31;                // "MCJ1"
+    private static final int FRAME_HEADER = 8;                  // length and CRC-32
+    private static final int MAX_RECORD = 4 * 1024 * 1024;
+
+    private static final byte CREATED = 1;
+    private static final byte RESULT = 2;
+    private static final byte STATE = 3;
+    private static final byte RESOLVED = 4;
+
+    // Delay that lets appends made close together share one fsync
+    private static final long SYNC_DELAY_MS = 200;
+    private static final long COMPACT_MIN_BYTES = 64 * 1024;
+
+    /**
+     * A request that was not resolved when the log was last written.
+     */
+    public static class Entry {
+        public final int requestCode;
+        public final int action;
+        public final String options;
+        public final List<String> results = new ArrayList<String>();
+        public String state;
+
+        Entry(int requestCode, int action, String options) {
+            this.requestCode = requestCode;
+            this.action = action;
+            this.options = options;
+        }
+    }
+
+    private final File file;
+    private final Map<Integer, Entry> live = new LinkedHashMap<Integer, Entry>();
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ScheduledExecutorService syncer;
+    private boolean syncScheduled;
+
+    // Size of the log right after the last compaction
+    private long compactedSize;
+
+    public RequestJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the log and compacts it to the requests still pending.
+     *
+     * @return  The unresolved requests in creation order
+     */
+    public synchronized List<Entry> open() throws IOException {
+        file.getParentFile().mkdirs();
+        if (file.exists()) {
+            replay();
+        }
+        compact();
+        return new ArrayList<Entry>(live.values());
+    }
+
+    public synchronized void created(int requestCode, int action, String options) {
+        live.put(requestCode, new Entry(requestCode, action, options));
+        append(CREATED, requestCode, createdPayload(action, options));
+    }
+
+    public synchronized void result(int requestCode, String result) {
+        Entry entry = live.get(requestCode);
+        if (entry != null) {
+            entry.results.add(result);
+            append(RESULT, requestCode, result.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Records plugin state a request needs to be finished after a restart, such as the file the
+     * camera writes to. Each call replaces the previous state.
+     */
+    public synchronized void state(int requestCode, String state) {
+        Entry entry = live.get(requestCode);
+        if (entry != null) {
+            entry.state = state;
+            append(STATE, requestCode, state.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @return  The state last recorded for an unresolved request, or null
+     */
+    public synchronized String getState(int requestCode) {
+        Entry entry = live.get(requestCode);
+        return entry != null ? entry.state : null;
+    }
+
+    public synchronized void resolved(int requestCode) {
+        if (live.remove(requestCode) != null) {
+            append(RESOLVED, requestCode, new byte[0]);
+        }
+    }
+
+    /**
+     * Writes and forces every buffered record to disk.
+     */
+    public synchronized void sync() {
+        syncScheduled = false;
+        if (channel == null || pending.position() == 0) {
+            return;
+        }
+        try {
+            pending.flip();
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            pending.clear();
+            channel.force(false);
+            // Resolved requests are dead weight; rewriting once the log doubles keeps this amortized
+            if (channel.size() > Math.max(COMPACT_MIN_BYTES, 2 * compactedSize)) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOG.e(LOG_TAG, "Error writing " + file, e);
+            pending.clear();
+        }
+    }
+
+    public synchronized void close() {
+        sync();
+        if (syncer != null) {
+            syncer.shutdown();
+            syncer = null;
+        }
+        closeChannel();
+    }
+
+    private void append(byte type, int requestCode, byte[] payload) {
+        if (channel != null && frame(type, requestCode, payload)) {
+            scheduleSync();
+        }
+    }
+
+    /**
+     * Adds a framed record to the write buffer.
+     *
+     * @return  false if the record was too large to log
+     */
+    private boolean frame(byte type, int requestCode, byte[] payload) {
+        int length = 5 + payload.length;
+        if (length > MAX_RECORD) {
+            LOG.w(LOG_TAG, "Not logging oversized record for request " + requestCode);
+            return false;
+        }
+        if (pending.remaining() < FRAME_HEADER + length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + FRAME_HEADER + length));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(type).putInt(requestCode).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+        pending.putInt(length).putInt((int) crc.getValue()).put(body.array());
+        return true;
+    }
+
+    private static byte[] createdPayload(int action, String options) {
+        byte[] text = options.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + text.length).putInt(action).put(text).array();
+    }
+
+    private void scheduleSync() {
+        if (syncScheduled) {
+            return;
+        }
+        if (syncer == null) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, LOG_TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        syncScheduled = true;
+        syncer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rebuilds the live requests from the log, stopping at the first record that is incomplete
+     * or fails its checksum.
+     */
+    private void replay() throws IOException {
+        try (FileChannel in = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+            if (in.read(header, 0) < 4 || header.getInt(0) != MAGIC) {
+                LOG.w(LOG_TAG, "Discarding unrecognized journal " + file);
+                return;
+            }
+            long position = 4;
+            long size = in.size();
+            CRC32 crc = new CRC32();
+            while (position + FRAME_HEADER <= size) {
+                header.clear();
+                readFully(in, header, position);
+                int length = header.getInt(0);
+                if (length < 5 || length > MAX_RECORD || position + FRAME_HEADER + length > size) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                readFully(in, body, position + FRAME_HEADER);
+                crc.reset();
+                crc.update(body.array(), 0, length);
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    break;
+                }
+                apply(body);
+                position += FRAME_HEADER + length;
+            }
+            if (position < size) {
+                LOG.w(LOG_TAG, "Dropped " + (size - position) + " bytes of incomplete records from " + file);
+            }
+        }
+    }
+
+    private void apply(ByteBuffer body) {
+        byte type = body.get(0);
+        int requestCode = body.getInt(1);
+        String text = new String(body.array(), 5, body.limit() - 5, StandardCharsets.UTF_8);
+        switch (type) {
+            case CREATED:
+                if (body.limit() < 9) {
+                    break;
+                }
+                int action = body.getInt(5);
+                live.put(requestCode, new Entry(requestCode, action, new String(body.array(), 9, body.limit() - 9, StandardCharsets.UTF_8)));
+                break;
+            case RESULT:
+                if (live.containsKey(requestCode)) {
+                    live.get(requestCode).results.add(text);
+                }
+                break;
+            case STATE:
+                if (live.containsKey(requestCode)) {
+                    live.get(requestCode).state = text;
+                }
+                break;
+            case RESOLVED:
+                live.remove(requestCode);
+                break;
+            default:
+                LOG.w(LOG_TAG, "Skipping unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * Writes the live requests to a new file, forces it to disk and moves it over the log, so a
+     * crash at any point leaves either the old or the new log intact. The old log stays open
+     * until it has been replaced, so if compaction fails appends keep going to it.
+     */
+    private void compact() throws IOException {
+        pending.clear();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        long size;
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            FileChannel tmpChannel = out.getChannel();
+            tmpChannel.truncate(0);
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            magic.putInt(0, MAGIC);
+            tmpChannel.write(magic);
+            for (Entry entry : live.values()) {
+                frame(CREATED, entry.requestCode, createdPayload(entry.action, entry.options));
+                for (String result : entry.results) {
+                    frame(RESULT, entry.requestCode, result.getBytes(StandardCharsets.UTF_8));
+                }
+                if (entry.state != null) {
+                    frame(STATE, entry.requestCode, entry.state.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            pending.flip();
+            while (pending.hasRemaining()) {
+                tmpChannel.write(pending);
+            }
+            tmpChannel.force(false);
+            size = tmpChannel.size();
+        } catch (IOException e) {
+            tmp.delete();
+            postponeCompaction();
+            throw e;
+        } finally {
+            pending.clear();
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            postponeCompaction();
+            throw new IOException("Unable to replace " + file);
+        }
+        closeChannel();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        channel.position(channel.size());
+        compactedSize = size;
+    }
+
+    /**
+     * Retries a failed compaction once the log has doubled again rather than on every sync.
+     */
+    private void postponeCompaction() {
+        if (channel != null) {
+            try {
+                compactedSize = channel.size();
+            } catch (IOException e) {
+                LOG.w(LOG_TAG, "Error reading the size of " + file, e);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.w(LOG_TAG, "Error closing " + file, e);
+            }
+        }
+        raf = null;
+        channel = null;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Format and data location of a 16 bit PCM WAV file, read from its RIFF chunks.
+ */
+public class WavFile {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    public final int channels;
+    public final int sampleRate;
+    public final long dataOffset;
+    public final long dataLength;
+
+    private WavFile(int channels, int sampleRate, long dataOffset, long dataLength) {
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * @return  The number of sample frames in the data chunk
+     */
+    public long getFrameCount() {
+        return dataLength / (2L * channels);
+    }
+
+    /**
+     * Reads the fmt and data chunks of a WAV file.
+     *
+     * @throws IOException if the file is not 16 bit PCM WAV
+     */
+    public static WavFile read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0, 12);
+        if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) { // "RIFF", "WAVE"
+            throw new IOException("Not a WAV file");
+        }
+
+        int channels = 0;
+        int sampleRate = 0;
+        long position = 12;
+        while (position + 8 <= size) {
+            readFully(channel, header, position, 8);
+            int id = header.getInt(0);
+            long length = header.getInt(4) & 0xFFFFFFFFL;
+
+            if (id == 0x20746d66) { // "fmt "
+                readFully(channel, header, position + 8, (int) Math.min(length, header.capacity()));
+                int format = header.getShort(0) & 0xFFFF;
+                if (format == FORMAT_EXTENSIBLE && length >= 26) {
+                    format = header.getShort(24) & 0xFFFF;
+                }
+                channels = header.getShort(2) & 0xFFFF;
+                sampleRate = header.getInt(4);
+                int bits = header.getShort(14) & 0xFFFF;
+                if (format != FORMAT_PCM || bits != 16 || channels == 0) {
+                    throw new IOException("Only 16 bit PCM WAV files are supported");
+                }
+            } else if (id == 0x61746164) { // "data"
+                if (channels == 0) {
+                    throw new IOException("WAV data before its format");
+                }
+                // Writers that never patched their header leave the size at 0 or 0xFFFFFFFF
+                long available = size - position - 8;
+                if (length == 0 || length > available) {
+                    length = available;
+                }
+                length -= length % (2L * channels);
+                return new WavFile(channels, sampleRate, position + 8, length);
+            }
+            position += 8 + length + (length & 1);
+        }
+        throw new IOException("WAV file has no data");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Truncated WAV file");
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Trims leading and trailing silence from 16 bit PCM WAV files and optionally normalizes their
+ * level. One streaming pass over memory-mapped windows measures the RMS energy of every 10 ms
+ * block; only the first and last blocks above the threshold and the energy between them are
+ * kept, so memory use does not grow with the length of the recording. A second pass copies the
+ * kept range with the gain applied.
+ */
+public class WavProcessor {
+
+    // Length of the blocks whose energy is compared against the threshold, in milliseconds
+    private static final int BLOCK_MS = 10;
+    private static final long MAP_WINDOW = 16L * 1024 * 1024;
+    private static final int COPY_SAMPLES = 32 * 1024;
+
+    // Normalization never raises the peak above this level
+    private static final double MAX_PEAK_DBFS = -1;
+
+    /**
+     * Processing options. A NaN normalizeDbfs disables normalization.
+     */
+    public static class Options {
+        public boolean trimSilence = true;
+        public double silenceThresholdDbfs = -50;
+        public int hangoverMs = 250;
+        public double normalizeDbfs = Double.NaN;
+    }
+
+    /**
+     * What process() changed.
+     */
+    public static class Result {
+        public final long startFrame;
+        public final long endFrame;
+        public final double gain;
+
+        Result(long startFrame, long endFrame, double gain) {
+            this.startFrame = startFrame;
+            this.endFrame = endFrame;
+            this.gain = gain;
+        }
+    }
+
+    /**
+     * Writes the processed recording to out.
+     *
+     * @param in        A 16 bit PCM WAV file
+     * @param out       The file to write; left untouched if null is returned
+     * @param options   What to change
+     * @param digests   Digests fed with every byte written to out
+     * @return          The kept range and applied gain, or null if the recording is left as it is
+     *                  because nothing needs to change or it is silent throughout
+     */
+    public static Result process(File in, File out, Options options, MediaDigest... digests) throws IOException {
+        try (FileChannel channel = new FileInputStream(in).getChannel()) {
+            WavFile wav = WavFile.read(channel);
+            Analysis analysis = analyze(channel, wav, options.silenceThresholdDbfs);
+            if (analysis.firstActiveBlock < 0) {
+                return null;
+            }
+
+            long frames = wav.getFrameCount();
+            long startFrame = 0;
+            long endFrame = frames;
+            if (options.trimSilence) {
+                long hangover = (long) wav.sampleRate * options.hangoverMs / 1000;
+                startFrame = Math.max(0, analysis.firstActiveBlock * analysis.blockFrames - hangover);
+                endFrame = Math.min(frames, (analysis.lastActiveBlock + 1) * analysis.blockFrames + hangover);
+            }
+
+            double gain = 1;
+            if (!Double.isNaN(options.normalizeDbfs) && analysis.activeRms() > 0) {
+                gain = Math.pow(10, options.normalizeDbfs / 20) * 32768 / analysis.activeRms();
+                double peakLimit = Math.pow(10, MAX_PEAK_DBFS / 20) * 32768 / Math.max(1, analysis.activePeak);
+                gain = Math.min(gain, peakLimit);
+            }
+            // Gains within 0.1 dB of unity are not worth rewriting the file for
+            if (Math.abs(20 * Math.log10(gain)) < 0.1) {
+                gain = 1;
+            }
+
+            if (startFrame == 0 && endFrame == frames && gain == 1) {
+                return null;
+            }
+            copy(channel, wav, startFrame, endFrame, gain, out, digests);
+            return new Result(startFrame, endFrame, gain);
+        }
+    }
+
+    /**
+     * Energy of the part of the recording between the first and last block above the threshold.
+     */
+    static class Analysis {
+        final int blockFrames;
+        long firstActiveBlock = -1;
+        long lastActiveBlock = -1;
+        double activeSumSquares;
+        long activeSamples;
+        int activePeak;
+
+        // Sums since the first active block; copied to the active fields at every active block
+        private long blocks;
+        private double runningSquares;
+        private long runningSamples;
+        private int runningPeak;
+
+        Analysis(int blockFrames) {
+            this.blockFrames = blockFrames;
+        }
+
+        double activeRms() {
+            return activeSamples == 0 ? 0 : Math.sqrt(activeSumSquares / activeSamples);
+        }
+
+        void addBlock(long sumSquares, int samples, int peak, boolean active) {
+            if (active && firstActiveBlock < 0) {
+                firstActiveBlock = blocks;
+            }
+            if (firstActiveBlock >= 0) {
+                runningSquares += sumSquares;
+                runningSamples += samples;
+                runningPeak = Math.max(runningPeak, peak);
+            }
+            if (active) {
+                lastActiveBlock = blocks;
+                activeSumSquares = runningSquares;
+                activeSamples = runningSamples;
+                activePeak = runningPeak;
+            }
+            blocks++;
+        }
+    }
+
+    static Analysis analyze(FileChannel channel, WavFile wav, double thresholdDbfs) throws IOException {
+        int blockFrames = Math.max(1, wav.sampleRate * BLOCK_MS / 1000);
+        int blockSamples = blockFrames * wav.channels;
+        double threshold = Math.pow(10, thresholdDbfs / 20) * 32768;
+        double sampleThreshold = threshold * threshold;
+        Analysis analysis = new Analysis(blockFrames);
+
+        long blockSquares = 0;
+        int blockPeak = 0;
+        int inBlock = 0;
+
+        // Samples are copied out in bulk; per-sample reads from the mapping are much slower
+        short[] buffer = new short[COPY_SAMPLES];
+        for (long offset = 0; offset < wav.dataLength; offset += MAP_WINDOW) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, wav.dataOffset + offset, Math.min(MAP_WINDOW, wav.dataLength - offset));
+            ShortBuffer samples = map.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            while (samples.hasRemaining()) {
+                int count = Math.min(buffer.length, samples.remaining());
+                samples.get(buffer, 0, count);
+                for (int i = 0; i < count; i++) {
+                    int s = buffer[i];
+                    blockSquares += s * s;
+                    int magnitude = s < 0 ? -s : s;
+                    if (magnitude > blockPeak) {
+                        blockPeak = magnitude;
+                    }
+                    if (++inBlock == blockSamples) {
+                        analysis.addBlock(blockSquares, inBlock, blockPeak, blockSquares >= sampleThreshold * inBlock);
+                        blockSquares = 0;
+                        blockPeak = 0;
+                        inBlock = 0;
+                    }
+                }
+            }
+        }
+        if (inBlock > 0) {
+            analysis.addBlock(blockSquares, inBlock, blockPeak, blockSquares >= sampleThreshold * inBlock);
+        }
+        return analysis;
+    }
+
+    private static void copy(FileChannel channel, WavFile wav, long startFrame, long endFrame, double gain, File out, MediaDigest[] digests) throws IOException {
+        // 16.16 fixed point keeps the per-sample work to a multiply and a shift
+        long gainFixed = Math.round(gain * 65536);
+        short[] buffer = new short[COPY_SAMPLES - COPY_SAMPLES % wav.channels];
+        long start = wav.dataOffset + startFrame * wav.channels * 2;
+        long length = (endFrame - startFrame) * wav.channels * 2;
+
+        // The kept range is known before anything is written, so the header goes out final
+        try (WavWriter writer = new WavWriter(out, wav.sampleRate, wav.channels, length, digests)) {
+            for (long offset = 0; offset < length; offset += MAP_WINDOW) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(MAP_WINDOW, length - offset));
+                ShortBuffer samples = map.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                while (samples.hasRemaining()) {
+                    int n = Math.min(buffer.length, samples.remaining());
+                    samples.get(buffer, 0, n);
+                    if (gainFixed != 65536) {
+                        for (int i = 0; i < n; i++) {
+                            long v = (buffer[i] * gainFixed) >> 16;
+                            buffer[i] = (short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : v < Short.MIN_VALUE ? Short.MIN_VALUE : v);
+                        }
+                    }
+                    writer.write(buffer, 0, n);
+                }
+            }
+        }
+    }
+}
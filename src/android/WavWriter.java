@@ -0,0 +1,154 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova.mediacapture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams 16 bit PCM into a WAV file. The header is written up front with empty sizes and patched
+ * in place about once a second and on close, so the file stays playable up to the last patch even
+ * if the app is killed while recording. When the length is known in advance the header is final
+ * from the start, and the file is written strictly in order so it can be digested as it goes.
+ */
+public class WavWriter implements PcmSink {
+
+    public static final int HEADER_SIZE = 44;
+
+    // Offsets of the RIFF chunk size and data chunk size fields
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DATA_SIZE_OFFSET = 40;
+
+    private final FileChannel channel;
+    private final ByteBuffer scratch;
+    private final ByteBuffer sizeField = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    private final long bytesPerSecond;
+    private final boolean sized;
+    private final MediaDigest[] digests;
+    private long dataLength;
+    private long patchedLength;
+
+    /**
+     * @param file          The file to create
+     * @param sampleRate    Frames per second
+     * @param channels      1 for mono, 2 for stereo
+     */
+    public WavWriter(File file, int sampleRate, int channels) throws IOException {
+        this(file, sampleRate, channels, -1);
+    }
+
+    /**
+     * @param file          The file to create
+     * @param sampleRate    Frames per second
+     * @param channels      1 for mono, 2 for stereo
+     * @param dataLength    The number of PCM bytes that will be written, or -1 if unknown
+     * @param digests       Digests fed with every byte of the file; only allowed with a known length
+     */
+    public WavWriter(File file, int sampleRate, int channels, long dataLength, MediaDigest... digests) throws IOException {
+        if (dataLength < 0 && digests.length > 0) {
+            throw new IllegalArgumentException("Digests need the data length up front");
+        }
+        this.channel = new FileOutputStream(file).getChannel();
+        this.scratch = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        this.bytesPerSecond = (long) sampleRate * channels * 2;
+        this.sized = dataLength >= 0;
+        this.digests = digests;
+
+        long data = sized ? clampDataLength(dataLength) : 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'}).putInt((int) (36 + data));
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '}).putInt(16);
+        header.putShort((short) 1);                     // PCM
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt((int) bytesPerSecond);
+        header.putShort((short) (channels * 2));        // block align
+        header.putShort((short) 16);                    // bits per sample
+        header.put(new byte[]{'d', 'a', 't', 'a'}).putInt((int) data);
+        header.flip();
+        MediaDigest.update(header, digests);
+        writeFully(header, 0);
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int length) throws IOException {
+        while (length > 0) {
+            scratch.clear();
+            int n = Math.min(length, scratch.capacity() / 2);
+            scratch.asShortBuffer().put(pcm, offset, n);
+            scratch.limit(n * 2);
+            MediaDigest.update(scratch, digests);
+            writeFully(scratch, HEADER_SIZE + dataLength);
+            dataLength += n * 2;
+            offset += n;
+            length -= n;
+        }
+        if (!sized && dataLength - patchedLength >= bytesPerSecond) {
+            patchSizes();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!sized) {
+                patchSizes();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return  The number of PCM bytes written so far
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    private void patchSizes() throws IOException {
+        long data = clampDataLength(dataLength);
+        putSize(RIFF_SIZE_OFFSET, 36 + data);
+        putSize(DATA_SIZE_OFFSET, data);
+        patchedLength = dataLength;
+    }
+
+    private static long clampDataLength(long dataLength) {
+        // Sizes are 32 bit; a recording past 4 GiB keeps the largest valid values
+        return Math.min(dataLength, 0xFFFFFFFFL - 36);
+    }
+
+    private void putSize(int position, long size) throws IOException {
+        sizeField.clear();
+        sizeField.putInt((int) size);
+        sizeField.flip();
+        writeFully(sizeField, position);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -113,6 +113,302 @@ exports.defineAutoTests = function () {
                 expect(fileData.size).toBeDefined();
             });
         });
+
+        // The native media classes are exercised through the plugin API with small fixtures
+        // built here, written to the cache directory with the File plugin and read back with
+        // readMediaChunk
+        describe('Android media processing', function () {
+            function fail (done) {
+                return function (error) {
+                    done.fail('Unexpected error: ' + JSON.stringify(error));
+                };
+            }
+
+            function skipUnlessAndroid () {
+                if (cordova.platformId !== 'android') {
+                    pending('Android only');
+                }
+            }
+
+            function concat (parts) {
+                var length = 0;
+                for (var i = 0; i < parts.length; i++) {
+                    length += parts[i].length;
+                }
+                var out = new Uint8Array(length);
+                for (var j = 0, offset = 0; j < parts.length; offset += parts[j].length, j++) {
+                    out.set(parts[j], offset);
+                }
+                return out;
+            }
+
+            function ascii (text) {
+                var out = new Uint8Array(text.length);
+                for (var i = 0; i < text.length; i++) {
+                    out[i] = text.charCodeAt(i);
+                }
+                return out;
+            }
+
+            function ints (values) {
+                var out = new Uint8Array(values.length * 4);
+                var view = new DataView(out.buffer);
+                for (var i = 0; i < values.length; i++) {
+                    view.setUint32(i * 4, values[i]);
+                }
+                return out;
+            }
+
+            function box (type, parts) {
+                var payload = concat(parts);
+                var out = new Uint8Array(8 + payload.length);
+                new DataView(out.buffer).setUint32(0, out.length);
+                out.set(ascii(type), 4);
+                out.set(payload, 8);
+                return out;
+            }
+
+            function topLevelBoxes (buffer) {
+                var view = new DataView(buffer);
+                var boxes = [];
+                for (var offset = 0; offset + 8 <= buffer.byteLength;) {
+                    var size = view.getUint32(offset);
+                    boxes.push({ type: String.fromCharCode.apply(null, new Uint8Array(buffer, offset + 4, 4)), offset: offset, size: size });
+                    if (size < 8) {
+                        break;
+                    }
+                    offset += size;
+                }
+                return boxes;
+            }
+
+            // Follows a path of container box types from the top level and returns the payload
+            // offset and end of the last one, or null if any of them is missing
+            function findBox (buffer, path) {
+                var view = new DataView(buffer);
+                var start = 0;
+                var end = buffer.byteLength;
+                for (var i = 0; i < path.length; i++) {
+                    var found = null;
+                    for (var offset = start; offset + 8 <= end;) {
+                        var size = view.getUint32(offset);
+                        if (size < 8) {
+                            break;
+                        }
+                        if (String.fromCharCode.apply(null, new Uint8Array(buffer, offset + 4, 4)) === path[i]) {
+                            found = offset;
+                            break;
+                        }
+                        offset += size;
+                    }
+                    if (found === null) {
+                        return null;
+                    }
+                    end = found + view.getUint32(found);
+                    start = found + 8;
+                }
+                return { offset: start, end: end };
+            }
+
+            // One video track of ten 100 ms samples, two per chunk, with keyframes at 0, 0.4 and
+            // 0.8 s. The media data comes before moov, as camera applications write it.
+            function createVideo () {
+                var ftyp = box('ftyp', [ascii('isom'), ints([0])]);
+                var samples = [];
+                var sizes = [];
+                var chunks = [];
+                var offset = ftyp.length + 8;
+                for (var i = 0; i < 10; i++) {
+                    var sample = new Uint8Array(10 + i);
+                    for (var k = 0; k < sample.length; k++) {
+                        sample[k] = i * 16 + k;
+                    }
+                    if (i % 2 === 0) {
+                        chunks.push(offset);
+                    }
+                    samples.push(sample);
+                    sizes.push(sample.length);
+                    offset += sample.length;
+                }
+                var stbl = box('stbl', [
+                    box('stsd', [ints([0, 0])]),
+                    box('stts', [ints([0, 1, 10, 100])]),
+                    box('stss', [ints([0, 3, 1, 5, 9])]),
+                    box('stsc', [ints([0, 1, 1, 2, 1])]),
+                    box('stsz', [ints([0, 0, 10].concat(sizes))]),
+                    box('stco', [ints([0, chunks.length].concat(chunks))])
+                ]);
+                var trak = box('trak', [
+                    box('tkhd', [new Uint8Array(84)]),
+                    box('mdia', [
+                        box('mdhd', [ints([0, 0, 0, 1000, 1000, 0])]),
+                        box('hdlr', [ints([0, 0, 0x76696465, 0, 0, 0])]), // 'vide'
+                        box('minf', [stbl])
+                    ])
+                ]);
+                var moov = box('moov', [box('mvhd', [ints([0, 0, 0, 1000, 1000, 0])]), trak]);
+                return { bytes: concat([ftyp, box('mdat', samples), moov]), samples: samples };
+            }
+
+            // 16 bit mono PCM at 8 kHz: one second of silence, one second of a 440 Hz tone with
+            // the given peak amplitude (0 to 1) and one more second of silence
+            function createWav (amplitude) {
+                var rate = 8000;
+                var frames = 3 * rate;
+                var out = new Uint8Array(44 + frames * 2);
+                var view = new DataView(out.buffer);
+                out.set(ascii('RIFF'), 0);
+                view.setUint32(4, 36 + frames * 2, true);
+                out.set(ascii('WAVEfmt '), 8);
+                view.setUint32(16, 16, true);
+                view.setUint16(20, 1, true); // PCM
+                view.setUint16(22, 1, true);
+                view.setUint32(24, rate, true);
+                view.setUint32(28, rate * 2, true);
+                view.setUint16(32, 2, true);
+                view.setUint16(34, 16, true);
+                out.set(ascii('data'), 36);
+                view.setUint32(40, frames * 2, true);
+                for (var i = rate; i < 2 * rate; i++) {
+                    view.setInt16(44 + i * 2, Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * 440 * i / rate)), true);
+                }
+                return out;
+            }
+
+            function writeFixture (name, bytes, successCallback, errorCallback) {
+                resolveLocalFileSystemURL(cordova.file.cacheDirectory, function (directory) {
+                    directory.getFile(name, { create: true }, function (entry) {
+                        entry.createWriter(function (writer) {
+                            writer.onwriteend = function () {
+                                successCallback(entry.toURL());
+                            };
+                            writer.onerror = errorCallback;
+                            writer.write(new Blob([bytes]));
+                        }, errorCallback);
+                    }, errorCallback);
+                }, errorCallback);
+            }
+
+            function readAll (mediaFile, successCallback, errorCallback) {
+                navigator.device.capture.readMediaChunk(mediaFile, 0, 4 * 1024 * 1024, successCallback, errorCallback);
+            }
+
+            // Writes the fixture, runs the action on it and hands the result to check before
+            // releasing it. afterRelease, when given, runs once the result has been released.
+            function processFixture (name, bytes, action, check, done, afterRelease) {
+                writeFixture(name, bytes, function (path) {
+                    action(path, function (mediaFile) {
+                        readAll(mediaFile, function (buffer) {
+                            check(buffer, mediaFile);
+                            navigator.device.capture.releaseMedia(mediaFile, function () {
+                                if (afterRelease) {
+                                    afterRelease(path);
+                                } else {
+                                    done();
+                                }
+                            }, fail(done));
+                        }, fail(done));
+                    }, fail(done));
+                }, fail(done));
+            }
+
+            function trimVideo (start, end) {
+                return function (path, successCallback, errorCallback) {
+                    navigator.device.capture.trimVideo(path, start, end, successCallback, errorCallback);
+                };
+            }
+
+            function processAudio (options) {
+                return function (path, successCallback, errorCallback) {
+                    navigator.device.capture.processAudio(path, options, successCallback, errorCallback);
+                };
+            }
+
+            it('capture.spec.13 trimVideo should cut at the previous keyframe and write moov first', function (done) {
+                skipUnlessAndroid();
+                var video = createVideo();
+                processFixture('capture-trim.mp4', video.bytes, trimVideo(0.45, 0.75), function (buffer) {
+                    var boxes = topLevelBoxes(buffer);
+                    expect(boxes.map(function (b) { return b.type; })).toEqual(['ftyp', 'moov', 'mdat']);
+                    // The cut starts at the keyframe at 0.4 s and keeps samples 4 to 7
+                    var mdat = boxes[2];
+                    var kept = new Uint8Array(buffer, mdat.offset + 8, mdat.size - 8);
+                    expect(Array.prototype.slice.call(kept)).toEqual(Array.prototype.slice.call(concat(video.samples.slice(4, 8))));
+                }, done);
+            });
+
+            it('capture.spec.14 trimVideo should return a copy that can be released when the range covers the whole video', function (done) {
+                skipUnlessAndroid();
+                var video = createVideo();
+                processFixture('capture-trim-all.mp4', video.bytes, trimVideo(0, 5), function (buffer, mediaFile) {
+                    expect(mediaFile.name).not.toBe('capture-trim-all.mp4');
+                }, done, function (path) {
+                    // Releasing the copy leaves the original in place
+                    readAll(path, function (buffer) {
+                        expect(buffer.byteLength).toBe(video.bytes.length);
+                        done();
+                    }, fail(done));
+                });
+            });
+
+            it('capture.spec.15 processAudio should trim the silence around the tone', function (done) {
+                skipUnlessAndroid();
+                processFixture('capture-trim.wav', createWav(0.5), processAudio({ trimSilence: true, silenceHangover: 0 }), function (buffer) {
+                    // One second of audio is left, give or take one 10 ms analysis block
+                    var frames = new DataView(buffer).getUint32(40, true) / 2;
+                    expect(Math.abs(frames - 8000)).toBeLessThan(80);
+                }, done);
+            });
+
+            it('capture.spec.16 processAudio should normalize the active audio to the requested level', function (done) {
+                skipUnlessAndroid();
+                processFixture('capture-normalize.wav', createWav(0.1), processAudio({ trimSilence: false, normalize: -10 }), function (buffer) {
+                    var view = new DataView(buffer);
+                    expect(view.getUint32(40, true)).toBe(3 * 8000 * 2);
+                    var peak = 0;
+                    for (var offset = 44; offset < buffer.byteLength; offset += 2) {
+                        peak = Math.max(peak, Math.abs(view.getInt16(offset, true)));
+                    }
+                    // A sine with an RMS of -10 dBFS peaks 3 dB higher
+                    expect(Math.abs(peak / 32768 - Math.pow(10, (-10 + 3.0103) / 20))).toBeLessThan(0.01);
+                }, done);
+            });
+
+            it('capture.spec.17 processAudio should return a copy that can be released when nothing changes', function (done) {
+                skipUnlessAndroid();
+                var wav = createWav(0.5);
+                processFixture('capture-unchanged.wav', wav, processAudio({ trimSilence: false }), function (buffer, mediaFile) {
+                    expect(mediaFile.name).not.toBe('capture-unchanged.wav');
+                    expect(buffer.byteLength).toBe(wav.length);
+                }, done, function (path) {
+                    // Releasing the copy leaves the original in place
+                    readAll(path, function (buffer) {
+                        expect(buffer.byteLength).toBe(wav.length);
+                        done();
+                    }, fail(done));
+                });
+            });
+
+            it('capture.spec.18 trimVideo should move moov before the media data and repoint the chunk offsets', function (done) {
+                skipUnlessAndroid();
+                var video = createVideo();
+                // Covering the whole video leaves nothing to cut, so only the faststart pass runs
+                processFixture('capture-faststart.mp4', video.bytes, trimVideo(0, 5), function (buffer) {
+                    expect(buffer.byteLength).toBe(video.bytes.length);
+                    expect(topLevelBoxes(buffer).map(function (b) { return b.type; })).toEqual(['ftyp', 'moov', 'mdat']);
+                    var stco = findBox(buffer, ['moov', 'trak', 'mdia', 'minf', 'stbl', 'stco']);
+                    expect(stco).not.toBeNull();
+                    var view = new DataView(buffer);
+                    expect(view.getUint32(stco.offset + 4)).toBe(5);
+                    // Every chunk offset points at the two samples it held in the original file
+                    for (var i = 0; i < 5; i++) {
+                        var chunk = concat(video.samples.slice(2 * i, 2 * i + 2));
+                        var offset = view.getUint32(stco.offset + 8 + i * 4);
+                        expect(Array.prototype.slice.call(new Uint8Array(buffer, offset, chunk.length))).toEqual(Array.prototype.slice.call(chunk));
+                    }
+                }, done);
+            });
+        });
     });
 };
 
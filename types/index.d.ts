@@ -52,6 +52,110 @@ interface Capture {
             onSuccess: (mediaFiles: MediaFile[]) => void,
             onError: (error: CaptureError) => void,
             options?: VideoOptions): void ;
+    /**
+     * Android only. Reports what the device can capture. The result is probed once and cached
+     * until a permission request completes. The supported*Modes arrays are filled from it
+     * when this is called; nothing is probed at startup.
+     * @param onSuccess Invoked with the capabilities.
+     * @param onError   Invoked with a CaptureError on failure.
+     */
+    getCapabilities(
+            onSuccess?: (capabilities: CaptureCapabilities) => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Stops an in-process recording started with recorder "native". The pending
+     * captureAudio call then succeeds with the recorded clip.
+     */
+    stopAudioCapture(
+            onSuccess?: () => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Returns the media of captures interrupted by the app being killed, such as
+     * photos taken while the camera was in front. Each interrupted capture is returned once.
+     * @param onSuccess Invoked with the recovered files, empty if nothing was lost.
+     * @param onError   Invoked with a CaptureError on failure.
+     */
+    recoverCaptures(
+            onSuccess: (mediaFiles: MediaFile[]) => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Lists the captures this plugin has returned, newest first, from a catalog
+     * the plugin keeps instead of MediaStore. Pass the returned cursor to get the next page.
+     * @param options   Paging and filters.
+     * @param onSuccess Invoked with a page of captures.
+     * @param onError   Invoked with a CaptureError on failure.
+     */
+    listCapturedMedia(
+            options: CatalogOptions | undefined,
+            onSuccess: (page: CatalogPage) => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Releases a file returned by a private storage capture. Files shared by
+     * deduplicated captures are deleted once every capture referencing them has been released.
+     * @param mediaFile The MediaFile or its full path.
+     * @param onSuccess Invoked with true if the file was deleted.
+     * @param onError   Invoked with a CaptureError if the file is not a private capture.
+     */
+    releaseMedia(
+            mediaFile: MediaFile | string,
+            onSuccess?: (deleted: boolean) => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Cuts an MP4/3GP video without re-encoding it. The cut starts at the keyframe
+     * at or before start. The trimmed copy is written to private storage.
+     * @param mediaFile The MediaFile or its full path.
+     * @param start     Start of the cut in seconds.
+     * @param end       End of the cut in seconds.
+     * @param onSuccess Invoked with the trimmed MediaFile, a new file even if nothing was cut.
+     * @param onError   Invoked with a CaptureError.
+     */
+    trimVideo(
+            mediaFile: MediaFile | string,
+            start: number,
+            end: number,
+            onSuccess: (mediaFile: MediaFile) => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Trims leading and trailing silence from a 16 bit PCM WAV file and optionally
+     * normalizes its level. The result is written to private storage.
+     * @param mediaFile The MediaFile or its full path.
+     * @param options   The processing to apply.
+     * @param onSuccess Invoked with the processed MediaFile, a new file even if nothing changed.
+     * @param onError   Invoked with a CaptureError.
+     */
+    processAudio(
+            mediaFile: MediaFile | string,
+            options: AudioProcessingOptions | null,
+            onSuccess: (mediaFile: MediaFile) => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Reads a byte range of a file as an ArrayBuffer. Encrypted private captures
+     * are decrypted natively.
+     * @param mediaFile The MediaFile or its full path.
+     * @param offset    Position of the first byte.
+     * @param length    Number of bytes wanted, at most 4 MiB per call.
+     * @param onSuccess Invoked with the bytes, an empty buffer at the end of the file.
+     * @param onError   Invoked with a CaptureError.
+     */
+    readMediaChunk(
+            mediaFile: MediaFile | string,
+            offset: number,
+            length: number,
+            onSuccess: (data: ArrayBuffer) => void,
+            onError?: (error: CaptureError) => void): void ;
+    /**
+     * Android only. Describes a file as fixed-size byte ranges with per-chunk digests for
+     * resumable uploads. Manifests are cached until the file changes.
+     * @param mediaFile The MediaFile or its full path.
+     * @param options   Chunk size and digests.
+     * @param onSuccess Invoked with the manifest.
+     * @param onError   Invoked with a CaptureError.
+     */
+    segmentMedia(
+            mediaFile: MediaFile | string,
+            options: SegmentOptions | null,
+            onSuccess: (manifest: MediaManifest) => void,
+            onError?: (error: CaptureError) => void): void ;
     /** The audio recording formats supported by the device. */
     supportedAudioModes: ConfigurationData[];
     /** The recording image sizes and formats supported by the device. */
@@ -72,14 +176,39 @@ interface MediaFile {
     lastModifiedDate: Date;
     /** The size of the file, in bytes. */
     size: number;
+    /** Android only. Hex digests requested with the digest capture option, keyed by algorithm. For encrypted captures they cover the decrypted media. */
+    digest?: { sha256?: string; xxhash64?: string };
+    /** Android only. Describes how an encrypted capture was sealed. */
+    encryption?: {
+        /** File layout, currently "cmce1". */
+        scheme: string;
+        /** Cipher used for the media chunks, currently "AES-256-GCM". */
+        algorithm: string;
+        /** Alias of the Android Keystore key wrapping the file's data key. */
+        keyId: string;
+        /** Base64 nonce prefix; chunk i uses this prefix followed by i as a 32 bit counter. */
+        iv: string;
+        /** Number of plaintext bytes per sealed chunk. */
+        chunkSize: number;
+    };
+    /** Android only. 64 bit dHash of a captured image as hex, when requested with perceptualHash. */
+    perceptualHash?: string;
+    /** Android only. fullPath of an image captured earlier in the session that looks nearly identical. */
+    nearDuplicateOf?: string;
+    /** Android only. Hamming distance between this image and nearDuplicateOf. */
+    nearDuplicateDistance?: number;
+    /** Android only. Peak summary of an audio clip, when requested with the waveform option. */
+    waveform?: Waveform;
     /**
      * Retrieves format information about the media capture file.
      * @param successCallback Invoked with a MediaFileData object when successful.
      * @param errorCallback   Invoked if the attempt fails, this function. 
+     * @param options         Android only. waveform: number of buckets of a waveform summary to include.
      */
     getFormatData(
         successCallback: (data: MediaFileData) => void,
-        errorCallback?: () => void): void;
+        errorCallback?: () => void,
+        options?: { waveform?: number }): void;
 }
 
 /** Encapsulates format information about a media file. */
@@ -94,6 +223,24 @@ interface MediaFileData {
     width: number;
     /** The length of the video or sound clip in seconds. The value is zero for images. */
     duration: number;
+    /** Android only. Peak summary of an audio clip, when requested. */
+    waveform?: Waveform;
+}
+
+/** Android only. Minimum, maximum and RMS sample values of equal time slices of an audio clip. */
+interface Waveform {
+    /** Number of time slices. */
+    buckets: number;
+    /** Length of the summarized audio in seconds. */
+    duration: number;
+    sampleRate: number;
+    channels: number;
+    /** Lowest sample of each slice over all channels, from -32768 to 32767. */
+    min: number[];
+    /** Highest sample of each slice over all channels, from -32768 to 32767. */
+    max: number[];
+    /** RMS level of each slice, from 0 to 32767. */
+    rms: number[];
 }
 
 /** Encapsulates the error code resulting from a failed media capture operation. */
@@ -135,6 +282,32 @@ interface AudioOptions {
     limit?: number;
     /** The maximum duration of a audio clip, in seconds. */
     duration?: number;
+    /** Android only. "native" records in-process into private storage instead of opening a recorder app. */
+    recorder?: string;
+    /** Android only. Container of native recordings: "wav" (default), "aac" or "flac". */
+    format?: string;
+    /** Android only. Sample rate of native recordings, defaults to 44100. */
+    sampleRate?: number;
+    /** Android only. 1 (default) or 2 channels for native recordings. */
+    channels?: number;
+    /** Android only. Trim leading and trailing silence from native WAV recordings. */
+    trimSilence?: boolean;
+    /** Android only. Level in dBFS below which audio counts as silence, defaults to -50. */
+    silenceThreshold?: number;
+    /** Android only. Milliseconds of audio kept before and after the trimmed silence, defaults to 250. */
+    silenceHangover?: number;
+    /** Android only. Target RMS level in dBFS for native WAV recordings, e.g. -20. */
+    normalize?: number;
+    /** Android only. Encrypt native recordings at rest; the recorder app cannot encrypt. */
+    encrypt?: boolean;
+    /** Android only. Alias of the Android Keystore key used with encrypt. */
+    keyAlias?: string;
+    /** Android only. Attach a waveform summary with this many buckets to each clip. */
+    waveform?: number;
+    /** Android only. Digest(s) to compute for each captured file: "sha256" and/or "xxhash64". */
+    digest?: string | string[];
+    /** Android only. Return results in a compact columnar form, decoded by the plugin, for large batches. */
+    compact?: boolean;
 }
 
 /** Encapsulates image capture configuration options. */
@@ -144,6 +317,22 @@ interface ImageOptions {
      * The value must be greater than or equal to 1 (defaults to 1).
      */
     limit?: number;
+    /** Android only. "private" keeps the image in app storage without creating a MediaStore entry. */
+    storage?: string;
+    /** Android only. With private storage, store captures by content so identical ones share a file. */
+    dedupe?: boolean;
+    /** Android only. Compute a perceptual hash for each image and flag near duplicates. */
+    perceptualHash?: boolean;
+    /** Android only. Largest Hamming distance (0-64) counted as a near duplicate, defaults to 10. */
+    nearDuplicateDistance?: number;
+    /** Android only. Encrypt captures at rest; implies private storage. */
+    encrypt?: boolean;
+    /** Android only. Alias of the Android Keystore key used with encrypt. */
+    keyAlias?: string;
+    /** Android only. Digest(s) to compute for each captured file: "sha256" and/or "xxhash64". */
+    digest?: string | string[];
+    /** Android only. Return results in a compact columnar form, decoded by the plugin, for large batches. */
+    compact?: boolean;
 }
 
 /** Encapsulates video capture configuration options. */
@@ -155,9 +344,119 @@ interface VideoOptions {
     limit?: number;
     /** The maximum duration of a video clip, in seconds. */
     duration?: number;
+    /** Android only. "private" keeps the video in app storage without creating a MediaStore entry. */
+    storage?: string;
+    /** Android only. With private storage, store captures by content so identical ones share a file. */
+    dedupe?: boolean;
+    /** Android only. Digest(s) to compute for each captured file: "sha256" and/or "xxhash64". */
+    digest?: string | string[];
+    /** Android only. Encrypt captures at rest; implies private storage. */
+    encrypt?: boolean;
+    /** Android only. Alias of the Android Keystore key used with encrypt. */
+    keyAlias?: string;
+    /** Android only. Move the MP4 moov box ahead of the media data so uploads and playback can start early. */
+    faststart?: boolean;
     
     image?: boolean;
     video?: boolean;
+    /** Android only. Return results in a compact columnar form, decoded by the plugin, for large batches. */
+    compact?: boolean;
+}
+
+/** Android only. Options for Capture.processAudio. */
+interface AudioProcessingOptions {
+    /** Trim leading and trailing silence, defaults to true. */
+    trimSilence?: boolean;
+    /** Level in dBFS below which audio counts as silence, defaults to -50. */
+    silenceThreshold?: number;
+    /** Milliseconds of audio kept before and after the trimmed silence, defaults to 250. */
+    silenceHangover?: number;
+    /** Target RMS level in dBFS. The gain is limited so peaks stay below -1 dBFS. */
+    normalize?: number;
+    /** "wav" (default) or "flac" to return the result losslessly compressed. */
+    format?: string;
+}
+
+/** Android only. Options for Capture.segmentMedia. */
+interface SegmentOptions {
+    /** Length of every chunk except the last in bytes, at least 64 KiB, defaults to 4 MiB. */
+    chunkSize?: number;
+    /** Digest(s) to compute for each chunk and the whole file: "sha256" (default) and/or "xxhash64". */
+    digest?: string | string[];
+}
+
+/** Android only. Byte ranges of a file returned by Capture.segmentMedia. */
+interface MediaManifest {
+    fullPath: string;
+    size: number;
+    lastModifiedDate: number;
+    chunkSize: number;
+    algorithms: string[];
+    /** Digests of the whole file keyed by algorithm. */
+    digest: { [algorithm: string]: string };
+    chunks: MediaChunk[];
+}
+
+/** Android only. One byte range of a MediaManifest. */
+interface MediaChunk {
+    index: number;
+    offset: number;
+    length: number;
+    /** Digests of the chunk keyed by algorithm. */
+    digest: { [algorithm: string]: string };
+}
+
+/** Android only. Options for Capture.listCapturedMedia. */
+interface CatalogOptions {
+    /** Maximum number of captures in the page, defaults to 100 and at most 1000. */
+    limit?: number;
+    /** The cursor of the previous page; omit for the first page. */
+    cursor?: number;
+    /** A media type such as "image/jpeg", or a top-level type such as "image". */
+    type?: string;
+    /** Earliest capture date included, in milliseconds since the epoch. */
+    since?: number;
+    /** Capture date at which the listing stops, exclusive, in milliseconds since the epoch. */
+    until?: number;
+    /** Check that each listed file still exists and forget missing ones, defaults to false. */
+    verify?: boolean;
+    /** Send the page in a compact columnar form, decoded by the plugin, which is faster for large pages. */
+    compact?: boolean;
+}
+
+/** Android only. A page of captures returned by Capture.listCapturedMedia. */
+interface CatalogPage {
+    /** Captures with captureDate and, once read, width, height and duration. */
+    mediaFiles: CatalogMediaFile[];
+    /** The cursor of the next page, or null after the last page. */
+    cursor: number | null;
+}
+
+/** Android only. A MediaFile listed by Capture.listCapturedMedia. */
+interface CatalogMediaFile extends MediaFile {
+    /** When the capture was returned, in milliseconds since the epoch. */
+    captureDate: number;
+    width?: number;
+    height?: number;
+    /** Duration in seconds, zero for images. */
+    duration?: number;
+}
+
+/** Android only. Describes what the device can capture, as returned by getCapabilities. */
+interface CaptureCapabilities {
+    /** Whether the app manifest declares the CAMERA permission. */
+    cameraPermissionDeclared: boolean;
+    /** Whether an app handles the sound recorder intent. */
+    audioRecorderApp: boolean;
+    /** Whether a camera app handles image capture. */
+    imageCaptureApp: boolean;
+    /** Whether a camera app handles video capture. */
+    videoCaptureApp: boolean;
+    /** Whether the device has an AAC encoder for in-process recording. */
+    aacEncoder: boolean;
+    supportedAudioModes: ConfigurationData[];
+    supportedImageModes: ConfigurationData[];
+    supportedVideoModes: ConfigurationData[];
 }
 
 /** Encapsulates a set of media capture parameters that a device supports. */
@@ -31,6 +31,11 @@ var CaptureError = require('./CaptureError');
  * type {DOMString} mime type
  * lastModifiedDate {Date} last modified date
  * size {Number} size of the file in bytes
+ * digest {Object} digests requested with the capture options, keyed by algorithm (Android only)
+ * encryption {Object} scheme, algorithm, keyId, iv and chunkSize of an encrypted capture (Android only)
+ * perceptualHash {DOMString} 64 bit dHash of an image as hex, when requested (Android only)
+ * nearDuplicateOf {DOMString} fullPath of a similar image captured earlier in the session (Android only)
+ * waveform {Object} min/max/RMS peak summary of an audio clip, when requested (Android only)
  */
 var MediaFile = function (name, localURL, type, lastModifiedDate, size) {
     MediaFile.__super__.constructor.apply(this, arguments);
@@ -43,12 +48,13 @@ utils.extend(MediaFile, File);
  *
  * @param {Function} successCB
  * @param {Function} errorCB
+ * @param {Object} options waveform: number of buckets of a waveform summary to include (Android only)
  */
-MediaFile.prototype.getFormatData = function (successCallback, errorCallback) {
+MediaFile.prototype.getFormatData = function (successCallback, errorCallback, options) {
     if (typeof this.fullPath === 'undefined' || this.fullPath === null) {
         errorCallback(new CaptureError(CaptureError.CAPTURE_INVALID_ARGUMENT));
     } else {
-        exec(successCallback, errorCallback, 'Capture', 'getFormatData', [this.fullPath, this.type]);
+        exec(successCallback, errorCallback, 'Capture', 'getFormatData', [this.fullPath, this.type, options || {}]);
     }
 };
 
@@ -46,6 +46,34 @@ function Capture () {
     this.supportedVideoModes = [];
 }
 
+/**
+ * Query what the device can capture. The supported*Modes arrays of navigator.device.capture are
+ * filled from the same data; capture apps and encoders are only probed by this call.
+ * Android only.
+ *
+ * @param {Function} successCB invoked with cameraPermissionDeclared, audioRecorderApp,
+ *                             imageCaptureApp, videoCaptureApp and the supported*Modes arrays
+ * @param {Function} errorCB
+ */
+Capture.prototype.getCapabilities = function (successCallback, errorCallback) {
+    var self = this;
+    var win = function (capabilities) {
+        fillModes(self.supportedAudioModes, capabilities.supportedAudioModes);
+        fillModes(self.supportedImageModes, capabilities.supportedImageModes);
+        fillModes(self.supportedVideoModes, capabilities.supportedVideoModes);
+        if (successCallback) {
+            successCallback(capabilities);
+        }
+    };
+    exec(win, errorCallback, 'Capture', 'getCapabilities', []);
+};
+
+// Replaces the contents in place, so references taken earlier see the probed modes
+function fillModes (modes, probed) {
+    modes.length = 0;
+    Array.prototype.push.apply(modes, probed || []);
+}
+
 /**
  * Launch audio recorder application for recording audio clip(s).
  *
@@ -79,4 +107,145 @@ Capture.prototype.captureVideo = function (successCallback, errorCallback, optio
     _capture('captureVideo', successCallback, errorCallback, options);
 };
 
+/**
+ * Stop an in-process recording started by captureAudio with recorder 'native'. The pending
+ * captureAudio call then succeeds with the recorded clip. Android only.
+ *
+ * @param {Function} successCB
+ * @param {Function} errorCB
+ */
+Capture.prototype.stopAudioCapture = function (successCallback, errorCallback) {
+    exec(successCallback, errorCallback, 'Capture', 'stopAudioCapture', []);
+};
+
+/**
+ * Get the media of captures that were interrupted because the app was killed, for example while
+ * the camera was in front. Each interrupted capture is returned once. Android only.
+ *
+ * @param {Function} successCB invoked with an array of MediaFile objects, empty if nothing was lost
+ * @param {Function} errorCB
+ */
+Capture.prototype.recoverCaptures = function (successCallback, errorCallback) {
+    var win = function (pluginResult) {
+        successCallback(helpers.wrapMediaFiles(pluginResult));
+    };
+    exec(win, errorCallback, 'Capture', 'recoverCaptures', []);
+};
+
+/**
+ * List the captures this plugin has returned, newest first, a page at a time. The list comes
+ * from a catalog the plugin keeps, not from MediaStore. Android only.
+ *
+ * @param {Object} options limit, cursor (from the previous page), type ('image' or 'image/jpeg'),
+ *                         since and until (capture dates in ms), verify and compact, all optional
+ * @param {Function} successCB invoked with an object holding mediaFiles, MediaFile objects that
+ *                             also have captureDate, width, height and duration, and the cursor
+ *                             of the next page, null after the last page
+ * @param {Function} errorCB
+ */
+Capture.prototype.listCapturedMedia = function (options, successCallback, errorCallback) {
+    var win = function (page) {
+        var mediaFiles = helpers.wrapMediaFiles(page.mediaFiles);
+        // Compact pages carry the catalog fields as columns, which the decoder already copied
+        for (var i = 0; Array.isArray(page.mediaFiles) && i < mediaFiles.length; i++) {
+            var entry = page.mediaFiles[i];
+            mediaFiles[i].captureDate = entry.captureDate;
+            if ('duration' in entry) {
+                mediaFiles[i].width = entry.width;
+                mediaFiles[i].height = entry.height;
+                mediaFiles[i].duration = entry.duration;
+            }
+        }
+        successCallback({ mediaFiles: mediaFiles, cursor: page.cursor });
+    };
+    exec(win, errorCallback, 'Capture', 'listCapturedMedia', [options || {}]);
+};
+
+/**
+ * Release a file returned by a private storage capture. Deduplicated files shared by several
+ * captures are only deleted once all of them have been released. Android only.
+ *
+ * @param {MediaFile|DOMString} mediaFile
+ * @param {Function} successCB invoked with true if the file was deleted
+ * @param {Function} errorCB
+ */
+Capture.prototype.releaseMedia = function (mediaFile, successCallback, errorCallback) {
+    var path = typeof mediaFile === 'string' ? mediaFile : mediaFile.fullPath;
+    var win = function (deleted) {
+        if (successCallback) {
+            successCallback(!!deleted);
+        }
+    };
+    exec(win, errorCallback, 'Capture', 'releaseMedia', [path]);
+};
+
+/**
+ * Trim leading and trailing silence from a 16 bit PCM WAV file and optionally normalize its
+ * level. The result is written to private storage and can be released with releaseMedia, even
+ * when nothing needed processing; the original file is not modified. Android only.
+ *
+ * @param {MediaFile|DOMString} mediaFile
+ * @param {Object} options trimSilence, silenceThreshold (dBFS), silenceHangover (ms) and normalize (dBFS)
+ * @param {Function} successCB invoked with the MediaFile of the processed audio
+ * @param {Function} errorCB
+ */
+Capture.prototype.processAudio = function (mediaFile, options, successCallback, errorCallback) {
+    var path = typeof mediaFile === 'string' ? mediaFile : mediaFile.fullPath;
+    var win = function (pluginResult) {
+        successCallback(helpers.wrapMediaFiles([pluginResult])[0]);
+    };
+    exec(win, errorCallback, 'Capture', 'processAudio', [path, options || {}]);
+};
+
+/**
+ * Read a byte range of a file as an ArrayBuffer without going through the File plugin. Encrypted
+ * private captures are decrypted natively. Reads that continue the previous one are served from
+ * a native read-ahead buffer. Android only.
+ *
+ * @param {MediaFile|DOMString} mediaFile
+ * @param {Number} offset position of the first byte
+ * @param {Number} length number of bytes wanted, at most 4 MiB per call
+ * @param {Function} successCB invoked with an ArrayBuffer, empty at the end of the file
+ * @param {Function} errorCB
+ */
+Capture.prototype.readMediaChunk = function (mediaFile, offset, length, successCallback, errorCallback) {
+    var path = typeof mediaFile === 'string' ? mediaFile : mediaFile.fullPath;
+    exec(successCallback, errorCallback, 'Capture', 'readMediaChunk', [path, offset, length]);
+};
+
+/**
+ * Describe a file as fixed-size byte ranges with per-chunk digests, for resumable uploads.
+ * Manifests are cached natively until the file changes, so resuming does not read the file
+ * again. Android only.
+ *
+ * @param {MediaFile|DOMString} mediaFile
+ * @param {Object} options chunkSize in bytes (at least 64 KiB) and digest name(s), both optional
+ * @param {Function} successCB invoked with the manifest
+ * @param {Function} errorCB
+ */
+Capture.prototype.segmentMedia = function (mediaFile, options, successCallback, errorCallback) {
+    var path = typeof mediaFile === 'string' ? mediaFile : mediaFile.fullPath;
+    exec(successCallback, errorCallback, 'Capture', 'segmentMedia', [path, options || {}]);
+};
+
+/**
+ * Cut a captured MP4/3GP video without re-encoding it. The cut starts at the keyframe at or
+ * before start, so the result may begin slightly earlier than requested. The trimmed copy is
+ * written to private storage and can be released with releaseMedia, even when the range covers
+ * the whole video. Android only.
+ *
+ * @param {MediaFile|DOMString} mediaFile
+ * @param {Number} start start of the cut in seconds
+ * @param {Number} end end of the cut in seconds
+ * @param {Function} successCB invoked with the MediaFile of the trimmed video
+ * @param {Function} errorCB
+ */
+Capture.prototype.trimVideo = function (mediaFile, start, end, successCallback, errorCallback) {
+    var path = typeof mediaFile === 'string' ? mediaFile : mediaFile.fullPath;
+    var win = function (pluginResult) {
+        successCallback(helpers.wrapMediaFiles([pluginResult])[0]);
+    };
+    exec(win, errorCallback, 'Capture', 'trimVideo', [path, start, end]);
+};
+
 module.exports = new Capture();
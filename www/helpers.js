@@ -22,6 +22,9 @@
 var MediaFile = require('./MediaFile');
 
 function wrapMediaFiles (pluginResult) {
+    if (pluginResult && pluginResult.format === 'columns') {
+        return decodeMediaFiles(pluginResult);
+    }
     var mediaFiles = [];
     var i;
     for (i = 0; i < pluginResult.length; i++) {
@@ -34,11 +37,66 @@ function wrapMediaFiles (pluginResult) {
         mediaFile.type = pluginResult[i].type;
         mediaFile.lastModifiedDate = pluginResult[i].lastModifiedDate;
         mediaFile.size = pluginResult[i].size;
+        if (pluginResult[i].digest) {
+            mediaFile.digest = pluginResult[i].digest;
+        }
+        if (pluginResult[i].encryption) {
+            mediaFile.encryption = pluginResult[i].encryption;
+        }
+        if (pluginResult[i].perceptualHash) {
+            mediaFile.perceptualHash = pluginResult[i].perceptualHash;
+            mediaFile.nearDuplicateOf = pluginResult[i].nearDuplicateOf;
+            mediaFile.nearDuplicateDistance = pluginResult[i].nearDuplicateDistance;
+        }
+        if (pluginResult[i].waveform) {
+            mediaFile.waveform = pluginResult[i].waveform;
+        }
         mediaFiles.push(mediaFile);
     }
     return mediaFiles;
 }
 
+/**
+ * Builds MediaFile objects from the columnar results returned with the compact option. Table
+ * entries ending with a slash are prefixes the file name is appended to.
+ */
+function decodeMediaFiles (result) {
+    var strings = result.strings;
+    var names = result.name;
+    var fullPaths = result.fullPath;
+    var localURLs = result.localURL;
+    var types = result.type;
+    var sizes = result.size;
+    var dates = result.lastModifiedDate;
+    var keys = Object.keys(result.columns);
+    var length = result.length;
+    var mediaFiles = new Array(length);
+    var i, k;
+    for (i = 0; i < length; i++) {
+        var mediaFile = new MediaFile();
+        var name = names[i];
+        var fullPath = join(strings[fullPaths[i]], name);
+        mediaFile.name = name;
+        mediaFile.localURL = localURLs[i] < 0 ? fullPath : join(strings[localURLs[i]], name);
+        mediaFile.fullPath = fullPath;
+        mediaFile.type = strings[types[i]];
+        mediaFile.lastModifiedDate = dates[i];
+        mediaFile.size = sizes[i];
+        for (k = 0; k < keys.length; k++) {
+            var value = result.columns[keys[k]][i];
+            if (value !== null) {
+                mediaFile[keys[k]] = value;
+            }
+        }
+        mediaFiles[i] = mediaFile;
+    }
+    return mediaFiles;
+}
+
+function join (prefix, name) {
+    return prefix.charAt(prefix.length - 1) === '/' ? prefix + name : prefix;
+}
+
 module.exports = {
     wrapMediaFiles: wrapMediaFiles
 };